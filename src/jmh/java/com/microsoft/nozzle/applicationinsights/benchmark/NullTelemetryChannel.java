@@ -0,0 +1,41 @@
+package com.microsoft.nozzle.applicationinsights.benchmark;
+
+import com.microsoft.applicationinsights.channel.TelemetryChannel;
+import com.microsoft.applicationinsights.channel.TelemetrySampler;
+import com.microsoft.applicationinsights.telemetry.Telemetry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Channel discarding the telemetries, so only the nozzle code is measured
+ */
+public class NullTelemetryChannel implements TelemetryChannel {
+
+    private boolean developerMode;
+
+    @Override
+    public boolean isDeveloperMode() {
+        return developerMode;
+    }
+
+    @Override
+    public void setDeveloperMode(boolean value) {
+        developerMode = value;
+    }
+
+    @Override
+    public void send(Telemetry telemetry) {
+    }
+
+    @Override
+    public void stop(long timeout, TimeUnit timeUnit) {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void setSampler(TelemetrySampler telemetrySampler) {
+    }
+}
@@ -0,0 +1,90 @@
+package com.microsoft.nozzle.applicationinsights.benchmark;
+
+import org.cloudfoundry.doppler.ContainerMetric;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.EventType;
+import org.cloudfoundry.doppler.LogMessage;
+import org.cloudfoundry.doppler.MessageType;
+
+import java.util.UUID;
+
+/**
+ * Realistic Firehose envelopes for the benchmarks
+ */
+public final class SyntheticEnvelopes {
+
+    public static final String RTR_MESSAGE = "www.example.com - [2017-07-05T03:00:58.329+0000] \"GET /orders/8472917 HTTP/1.1\" 200 0 1834 \"-\" "
+            + "\"Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/52.0.2743.116 Safari/537.36 Edge/15.15063\" "
+            + "\"10.0.0.24:40718\" \"10.0.0.23:60958\" x_forwarded_for:\"167.220.255.47, 10.0.0.24\" x_forwarded_proto:\"https\" "
+            + "vcap_request_id:\"061a9e6a-9acb-4284-43be-7e80199ef244\" response_time:0.002771 app_id:\"e0e72fdd-5a40-4e54-a14b-703233604d8d\" "
+            + "app_index:\"0\" x_b3_traceid:\"9c1a701d7b8bb275\" x_b3_spanid:\"9c1a701d7b8bb275\" x_b3_parentspanid:\"-\"";
+
+    public static final String APP_MESSAGE = "2017-07-05 03:00:58.329  INFO 14 --- [nio-8080-exec-3] c.e.orders.OrderController               : "
+            + "processed batch size=512 took=38ms";
+
+    public static final String API_MESSAGE = "Updated app with guid e0e72fdd-5a40-4e54-a14b-703233604d8d ({\"state\"=>\"STARTED\"})";
+
+    public static final String STG_MESSAGE = "Staging complete";
+
+    public static final String SSH_MESSAGE = "Successful remote access by 10.0.0.24:40718";
+
+    private SyntheticEnvelopes() {
+    }
+
+    public static String appId(int i) {
+        return new UUID(0x5a404e54a14bL, i).toString();
+    }
+
+    public static Envelope logEnvelope(String appId, String sourceType, String message, MessageType messageType) {
+        return Envelope.builder()
+                .eventType(EventType.LOG_MESSAGE)
+                .origin("benchmark")
+                .timestamp(System.nanoTime())
+                .logMessage(LogMessage.builder()
+                        .applicationId(appId)
+                        .message(message)
+                        .messageType(messageType)
+                        .sourceInstance("0")
+                        .sourceType(sourceType)
+                        .timestamp(System.nanoTime())
+                        .build())
+                .build();
+    }
+
+    public static Envelope containerMetricEnvelope(String appId, int instanceIndex) {
+        return Envelope.builder()
+                .eventType(EventType.CONTAINER_METRIC)
+                .origin("benchmark")
+                .timestamp(System.nanoTime())
+                .containerMetric(ContainerMetric.builder()
+                        .applicationId(appId)
+                        .instanceIndex(instanceIndex)
+                        .cpuPercentage(12.5)
+                        .diskBytes(134217728L)
+                        .diskBytesQuota(1073741824L)
+                        .memoryBytes(268435456L)
+                        .memoryBytesQuota(1073741824L)
+                        .build())
+                .build();
+    }
+
+    /**
+     * Envelope of the given source type, CONTAINER_METRIC for container metrics
+     */
+    public static Envelope envelope(String appId, String sourceType) {
+        switch (sourceType) {
+            case "RTR":
+                return logEnvelope(appId, sourceType, RTR_MESSAGE, MessageType.OUT);
+            case "API":
+                return logEnvelope(appId, sourceType, API_MESSAGE, MessageType.OUT);
+            case "STG":
+                return logEnvelope(appId, sourceType, STG_MESSAGE, MessageType.OUT);
+            case "SSH":
+                return logEnvelope(appId, sourceType, SSH_MESSAGE, MessageType.OUT);
+            case "CONTAINER_METRIC":
+                return containerMetricEnvelope(appId, 0);
+            default:
+                return logEnvelope(appId, sourceType, APP_MESSAGE, MessageType.OUT);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.microsoft.nozzle.applicationinsights.cache;
+
+import com.microsoft.nozzle.applicationinsights.benchmark.SyntheticEnvelopes;
+import com.microsoft.nozzle.applicationinsights.config.NozzleProperties;
+import com.microsoft.nozzle.applicationinsights.message.TraceMessage;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AppDataCacheBenchmark {
+
+    private static final int APPS = 10000;
+
+    private AppDataCache cache;
+
+    private String[] appIds;
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        int next;
+    }
+
+    @Setup
+    public void setup() {
+        cache = new AppDataCache(null, new NozzleProperties());
+        appIds = new String[APPS];
+        for (int i = 0; i < 100; i++) {
+            cache.addOrganization("org-" + i, "organization " + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            cache.addSpace("space-" + i, "space " + i, "org-" + (i % 100));
+        }
+        for (int i = 0; i < APPS; i++) {
+            appIds[i] = SyntheticEnvelopes.appId(i);
+            cache.addApplication(appIds[i], "app " + i, "space-" + (i % 1000));
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void getAppData(ThreadState state, Blackhole bh) {
+        TraceMessage message = new TraceMessage();
+        cache.getAppData(appIds[(state.next++ & Integer.MAX_VALUE) % APPS], message);
+        bh.consume(message);
+    }
+}
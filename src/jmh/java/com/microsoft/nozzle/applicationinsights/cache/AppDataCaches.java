@@ -0,0 +1,29 @@
+package com.microsoft.nozzle.applicationinsights.cache;
+
+import com.microsoft.nozzle.applicationinsights.config.NozzleProperties;
+
+/**
+ * App data caches populated without a Cloud Controller
+ */
+public final class AppDataCaches {
+
+    private AppDataCaches() {
+    }
+
+    /**
+     * Cache knowing the given apps, all in the same space and organization
+     *
+     * @param properties
+     * @param appIds
+     * @return
+     */
+    public static AppDataCache withApps(NozzleProperties properties, String... appIds) {
+        AppDataCache cache = new AppDataCache(null, properties);
+        cache.addOrganization("benchmark-org", "benchmark organization");
+        cache.addSpace("benchmark-space", "benchmark space", "benchmark-org");
+        for (int i = 0; i < appIds.length; i++) {
+            cache.addApplication(appIds[i], "app " + i, "benchmark-space");
+        }
+        return cache;
+    }
+}
@@ -0,0 +1,137 @@
+package com.microsoft.nozzle.applicationinsights.loadtest;
+
+import com.microsoft.nozzle.applicationinsights.benchmark.SyntheticEnvelopes;
+import org.cloudfoundry.doppler.ContainerMetricsRequest;
+import org.cloudfoundry.doppler.DopplerClient;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.FirehoseRequest;
+import org.cloudfoundry.doppler.MessageType;
+import org.cloudfoundry.doppler.RecentLogsRequest;
+import org.cloudfoundry.doppler.StreamRequest;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Firehose generating envelopes of a mix of source types at a target rate, for a given duration
+ * <p>
+ * App log traces and RTR requests carry their generation time as a "loadtest-sent=" marker, which the fake ingestion
+ * endpoint reads to measure the latency from envelope to ingestion.
+ */
+class FakeDopplerClient implements DopplerClient {
+
+    static final String SENT_MARKER = "loadtest-sent=";
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final List<String> monitoredAppIds;
+    private final int unmonitoredPercent;
+    private final String[] sourceTypes;
+    private final int rate;
+    private final long durationNanos;
+
+    private final LongAdder generated = new LongAdder();
+    private volatile boolean done = false;
+
+    /**
+     * @param monitoredAppIds    apps the envelopes are generated for
+     * @param unmonitoredPercent percentage of envelopes generated for other apps
+     * @param mix                weight of each source type, CONTAINER_METRIC for container metrics
+     * @param rate               envelopes per second
+     * @param durationSeconds
+     */
+    FakeDopplerClient(List<String> monitoredAppIds, int unmonitoredPercent, Map<String, Integer> mix, int rate, long durationSeconds) {
+        this.monitoredAppIds = monitoredAppIds;
+        this.unmonitoredPercent = unmonitoredPercent;
+        this.rate = rate;
+        this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+
+        // One slot per weight unit, so picking a slot round robin follows the mix
+        int total = mix.values().stream().mapToInt(Integer::intValue).sum();
+        sourceTypes = new String[total];
+        int slot = 0;
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            for (int i = 0; i < entry.getValue(); i++) {
+                sourceTypes[slot++] = entry.getKey();
+            }
+        }
+    }
+
+    @Override
+    public Flux<Envelope> firehose(FirehoseRequest request) {
+        return Flux.create(sink -> {
+            Thread generator = new Thread(() -> generate(sink), "fake-firehose");
+            generator.setDaemon(true);
+            generator.start();
+        });
+    }
+
+    private void generate(FluxSink<Envelope> sink) {
+        long start = System.nanoTime();
+        long emitted = 0;
+        long now;
+        while ((now = System.nanoTime()) - start < durationNanos && !sink.isCancelled()) {
+            long target = (now - start) * rate / TimeUnit.SECONDS.toNanos(1);
+            while (emitted < target) {
+                sink.next(next(emitted));
+                emitted++;
+                generated.increment();
+            }
+            LockSupport.parkNanos(TICK_NANOS);
+        }
+        done = true;
+        sink.complete();
+    }
+
+    private Envelope next(long sequence) {
+        String sourceType = sourceTypes[(int) (sequence % sourceTypes.length)];
+        String appId = (sequence * 7 % 100) < unmonitoredPercent
+                ? SyntheticEnvelopes.appId(1_000_000 + (int) (sequence % 1000))
+                : monitoredAppIds.get((int) (sequence / sourceTypes.length % monitoredAppIds.size()));
+
+        switch (sourceType) {
+            case "RTR":
+                return SyntheticEnvelopes.logEnvelope(appId, sourceType,
+                        SyntheticEnvelopes.RTR_MESSAGE.replace("GET /orders/8472917 ", "GET /orders/8472917?" + SENT_MARKER + System.currentTimeMillis() + " "),
+                        MessageType.OUT);
+            case "CONTAINER_METRIC":
+                return SyntheticEnvelopes.containerMetricEnvelope(appId, (int) (sequence % 4));
+            case "API":
+            case "STG":
+            case "SSH":
+                return SyntheticEnvelopes.envelope(appId, sourceType);
+            default:
+                return SyntheticEnvelopes.logEnvelope(appId, sourceType,
+                        SyntheticEnvelopes.APP_MESSAGE + " " + SENT_MARKER + System.currentTimeMillis(),
+                        sequence % 10 == 0 ? MessageType.ERR : MessageType.OUT);
+        }
+    }
+
+    long getGenerated() {
+        return generated.sum();
+    }
+
+    boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public Flux<Envelope> containerMetrics(ContainerMetricsRequest request) {
+        return Flux.empty();
+    }
+
+    @Override
+    public Flux<Envelope> recentLogs(RecentLogsRequest request) {
+        return Flux.empty();
+    }
+
+    @Override
+    public Flux<Envelope> stream(StreamRequest request) {
+        return Flux.empty();
+    }
+}
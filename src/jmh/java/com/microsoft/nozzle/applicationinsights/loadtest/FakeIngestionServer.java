@@ -0,0 +1,218 @@
+package com.microsoft.nozzle.applicationinsights.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Local Application Insights ingestion endpoint, counting and validating the telemetries it receives
+ * <p>
+ * Each line of a request must be a JSON object with one of the expected instrumentation keys and a base type. The
+ * latency from envelope to ingestion is recorded for the telemetries carrying the generation time marker.
+ */
+class FakeIngestionServer {
+
+    static final String PATH = "/v2/track";
+
+    private static final Pattern IKEY = Pattern.compile("\"iKey\"\\s*:\\s*\"([^\"]*)\"");
+
+    private static final Pattern BASE_TYPE = Pattern.compile("\"baseType\"\\s*:\\s*\"(\\w+)\"");
+
+    // Latencies in milliseconds, one bucket per millisecond, the last bucket for anything slower
+    private static final int MAX_LATENCY_MILLIS = 120_000;
+
+    private final Set<String> instrumentationKeys;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder items = new LongAdder();
+    private final LongAdder invalidItems = new LongAdder();
+    private final Map<String, LongAdder> itemsByType = new ConcurrentHashMap<String, LongAdder>();
+    private volatile AtomicLongArray latencies = new AtomicLongArray(MAX_LATENCY_MILLIS + 1);
+
+    FakeIngestionServer(Set<String> instrumentationKeys, int threads) throws IOException {
+        this.instrumentationKeys = instrumentationKeys;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newFixedThreadPool(threads);
+        server.createContext(PATH, this::handle);
+        server.setExecutor(executor);
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    String getEndpoint() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + PATH;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.increment();
+        int received = 0;
+        int accepted = 0;
+        try {
+            InputStream body = new CountingInputStream(exchange.getRequestBody(), compressedBytes);
+            if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                body = new GZIPInputStream(body);
+            }
+            long now = System.currentTimeMillis();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                received++;
+                if (validate(line, now)) {
+                    accepted++;
+                }
+            }
+        } catch (IOException e) {
+            exchange.sendResponseHeaders(400, -1);
+            exchange.close();
+            return;
+        }
+
+        byte[] response = ("{\"itemsReceived\":" + received + ",\"itemsAccepted\":" + accepted + ",\"errors\":[]}").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    private boolean validate(String line, long now) {
+        items.increment();
+        Matcher ikey = IKEY.matcher(line);
+        Matcher baseType = BASE_TYPE.matcher(line);
+        if (!line.startsWith("{") || !line.endsWith("}") || !ikey.find() || !instrumentationKeys.contains(ikey.group(1)) || !baseType.find()) {
+            invalidItems.increment();
+            return false;
+        }
+        itemsByType.computeIfAbsent(baseType.group(1), type -> new LongAdder()).increment();
+
+        int marker = line.indexOf(FakeDopplerClient.SENT_MARKER);
+        if (marker >= 0) {
+            long sent = 0;
+            int i = marker + FakeDopplerClient.SENT_MARKER.length();
+            while (i < line.length() && Character.isDigit(line.charAt(i))) {
+                sent = sent * 10 + (line.charAt(i++) - '0');
+            }
+            latencies.incrementAndGet((int) Math.max(0, Math.min(MAX_LATENCY_MILLIS, now - sent)));
+        }
+        return true;
+    }
+
+    /**
+     * Forget the latencies recorded so far, at the end of the warm-up
+     */
+    void resetLatencies() {
+        latencies = new AtomicLongArray(MAX_LATENCY_MILLIS + 1);
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the latency in milliseconds, -1 if no latency was recorded
+     */
+    long getLatencyPercentile(double percentile) {
+        AtomicLongArray snapshot = latencies;
+        long total = 0;
+        for (int i = 0; i < snapshot.length(); i++) {
+            total += snapshot.get(i);
+        }
+        if (total == 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < snapshot.length(); i++) {
+            seen += snapshot.get(i);
+            if (seen >= rank) {
+                return i;
+            }
+        }
+        return MAX_LATENCY_MILLIS;
+    }
+
+    long getRequests() {
+        return requests.sum();
+    }
+
+    long getCompressedBytes() {
+        return compressedBytes.sum();
+    }
+
+    long getItems() {
+        return items.sum();
+    }
+
+    long getInvalidItems() {
+        return invalidItems.sum();
+    }
+
+    Map<String, Long> getItemsByType() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        itemsByType.forEach((type, count) -> counts.put(type, count.sum()));
+        return counts;
+    }
+
+    private static final class CountingInputStream extends InputStream {
+        private final InputStream in;
+        private final LongAdder count;
+
+        private CountingInputStream(InputStream in, LongAdder count) {
+            this.in = in;
+            this.count = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = in.read(buffer, offset, length);
+            if (n > 0) {
+                count.add(n);
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.microsoft.nozzle.applicationinsights.loadtest;
+
+import com.microsoft.nozzle.applicationinsights.cache.AppDataCache;
+import com.microsoft.nozzle.applicationinsights.cache.AppDataCaches;
+import com.microsoft.nozzle.applicationinsights.channel.BatchingTelemetryChannel;
+import com.microsoft.nozzle.applicationinsights.channel.TransmissionMetrics;
+import com.microsoft.nozzle.applicationinsights.config.ApplicationConfig;
+import com.microsoft.nozzle.applicationinsights.config.NozzleProperties;
+import com.microsoft.nozzle.applicationinsights.config.TelemetryType;
+import com.microsoft.nozzle.applicationinsights.nozzle.EnvelopeDispatcher;
+import com.microsoft.nozzle.applicationinsights.nozzle.NozzlePipeline;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.bind.PropertiesConfigurationFactory;
+import org.springframework.core.env.MutablePropertySources;
+import org.springframework.core.env.SystemEnvironmentPropertySource;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * End-to-end load test of the nozzle, from a fake Firehose to a fake Application Insights ingestion endpoint
+ * <p>
+ * The nozzle settings are read from the environment, as in the application, APPLICATION_CONFIG giving the apps the
+ * envelopes are generated for. Options, as --name=value:
+ * <pre>
+ * rate                : envelopes per second, default 10000
+ * duration            : seconds of load, default 60
+ * warmup              : seconds of load excluded from the throughput and latency, default 10
+ * mix                 : weights of the source types, default RTR:40,APP:40,API:5,CONTAINER_METRIC:15
+ * unmonitored-percent : percentage of envelopes of apps not in APPLICATION_CONFIG, default 0
+ * report-interval     : seconds between progress lines, default 10
+ * ingestion-threads   : threads of the fake ingestion endpoint, default 8
+ * </pre>
+ */
+public final class LoadTest {
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private long maxHeapUsed;
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        new LoadTest().run(options);
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("rate", "10000");
+        options.put("duration", "60");
+        options.put("warmup", "10");
+        options.put("mix", "RTR:40,APP:40,API:5,CONTAINER_METRIC:15");
+        options.put("unmonitored-percent", "0");
+        options.put("report-interval", "10");
+        options.put("ingestion-threads", "8");
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0 || !options.containsKey(arg.substring(2, equals))) {
+                throw new IllegalArgumentException("Unknown option: " + arg + ", valid options are --" + String.join("=, --", options.keySet()) + "=");
+            }
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        return options;
+    }
+
+    private static Map<String, Integer> parseMix(String mix) {
+        Map<String, Integer> weights = new LinkedHashMap<String, Integer>();
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid mix entry: " + entry);
+            }
+            weights.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+        }
+        return weights;
+    }
+
+    /**
+     * Bind the environment to the nozzle properties the way the application does
+     */
+    private static NozzleProperties loadProperties() throws Exception {
+        NozzleProperties properties = new NozzleProperties();
+        MutablePropertySources sources = new MutablePropertySources();
+        sources.addFirst(new SystemEnvironmentPropertySource("environment", new HashMap<String, Object>(System.getenv())));
+        PropertiesConfigurationFactory<NozzleProperties> factory = new PropertiesConfigurationFactory<NozzleProperties>(properties);
+        factory.setPropertySources(sources);
+        factory.bindPropertiesToTarget();
+        return properties;
+    }
+
+    private void run(Map<String, String> options) throws Exception {
+        int rate = Integer.parseInt(options.get("rate"));
+        long duration = Long.parseLong(options.get("duration"));
+        long warmup = Long.parseLong(options.get("warmup"));
+        long reportInterval = Long.parseLong(options.get("report-interval"));
+
+        NozzleProperties properties = loadProperties();
+        // No Cloud Controller, the app data cache is populated up front and the Firehose is connected right away
+        properties.setAppCacheWarmupTimeout(0);
+        properties.setAppCacheSnapshotPath(null);
+        properties.postConstruct();
+
+        List<ApplicationConfig> configs = properties.getApplicationConfigs();
+        if (configs.isEmpty()) {
+            throw new IllegalArgumentException("APPLICATION_CONFIG is not set or has no application");
+        }
+        // The generated envelopes carry the app ids, the apps selected by name patterns have none
+        List<String> appIds = configs.stream().map(ApplicationConfig::getApplicationId).filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        if (appIds.isEmpty()) {
+            throw new IllegalArgumentException("APPLICATION_CONFIG has no APPLICATION_ID, the load test does not support scoped configs only");
+        }
+        Set<String> instrumentationKeys = configs.stream().map(ApplicationConfig::getInstrumentationKey).collect(Collectors.toCollection(HashSet::new));
+
+        FakeIngestionServer ingestion = new FakeIngestionServer(instrumentationKeys, Integer.parseInt(options.get("ingestion-threads")));
+        ingestion.start();
+        properties.setIngestionEndpoint(ingestion.getEndpoint());
+
+        FakeDopplerClient doppler = new FakeDopplerClient(appIds, Integer.parseInt(options.get("unmonitored-percent")),
+                parseMix(options.get("mix")), rate, duration);
+        TransmissionMetrics transmissionMetrics = new TransmissionMetrics();
+        AppDataCache appDataCache = AppDataCaches.withApps(properties, appIds.toArray(new String[appIds.size()]));
+        NozzlePipeline pipeline = new NozzlePipeline(properties, appDataCache, doppler,
+                instrumentationKey -> new BatchingTelemetryChannel(instrumentationKey, properties, transmissionMetrics));
+
+        System.out.printf("Load test: %d envelopes/s for %d s (%d s warm-up), %d apps, mix %s, ingestion at %s%n",
+                rate, duration, warmup, appIds.size(), options.get("mix"), ingestion.getEndpoint());
+        pipeline.start();
+
+        long start = System.nanoTime();
+        long measureStart = start;
+        long generatedAtMeasureStart = 0;
+        long ingestedAtMeasureStart = 0;
+        boolean measuring = warmup <= 0;
+        long nextReport = reportInterval;
+        while (!doppler.isDone()) {
+            TimeUnit.MILLISECONDS.sleep(200);
+            long elapsed = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+            sampleHeap();
+            if (!measuring && elapsed >= warmup) {
+                measuring = true;
+                measureStart = System.nanoTime();
+                generatedAtMeasureStart = doppler.getGenerated();
+                ingestedAtMeasureStart = ingestion.getItems();
+                ingestion.resetLatencies();
+                maxHeapUsed = 0;
+            }
+            if (elapsed >= nextReport) {
+                nextReport += reportInterval;
+                System.out.printf("%5d s  generated %,d  queued %,d  ingested %,d  p99 %d ms  heap %,d MB%n", elapsed,
+                        doppler.getGenerated(), pipeline.getDispatcher().getQueuedCount(), ingestion.getItems(),
+                        ingestion.getLatencyPercentile(99), memory.getHeapMemoryUsage().getUsed() >> 20);
+            }
+        }
+        long measureEnd = System.nanoTime();
+        long generated = doppler.getGenerated() - generatedAtMeasureStart;
+        long ingestedDuringLoad = ingestion.getItems() - ingestedAtMeasureStart;
+
+        // Let the dispatcher drain, then flush the channels
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (pipeline.getDispatcher().getQueuedCount() > 0 && System.nanoTime() < drainDeadline) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        pipeline.stop();
+        ingestion.stop();
+
+        double seconds = (measureEnd - measureStart) / 1e9;
+        EnvelopeDispatcher dispatcher = pipeline.getDispatcher();
+        System.out.println();
+        System.out.printf("Sustained throughput : %,.0f envelopes/s generated, %,.0f telemetries/s ingested%n", generated / seconds, ingestedDuringLoad / seconds);
+        System.out.printf("Latency to ingestion : p50 %d ms, p99 %d ms, p99.9 %d ms%n",
+                ingestion.getLatencyPercentile(50), ingestion.getLatencyPercentile(99), ingestion.getLatencyPercentile(99.9));
+        System.out.printf("Envelopes            : %,d generated, %,d dispatched, %,d filtered%n",
+                doppler.getGenerated(), dispatcher.getAcceptedCount(), metric(pipeline.getConsumer().metrics(), "nozzle.firehose.filtered"));
+        for (TelemetryType type : TelemetryType.values()) {
+            System.out.printf("Dropped %-12s : %,d%n", type.getConfigName(), dispatcher.getDroppedCount(type));
+        }
+        System.out.printf("Ingestion            : %,d requests, %,d telemetries, %,d invalid, %,d compressed bytes, by type %s%n",
+                ingestion.getRequests(), ingestion.getItems(), ingestion.getInvalidItems(), ingestion.getCompressedBytes(), ingestion.getItemsByType());
+        System.out.printf("Failed batches       : %,d%n", metric(transmissionMetrics.metrics(), "nozzle.transmission.failed"));
+        System.gc();
+        System.out.printf("Heap                 : %,d MB max used under load, %,d MB after GC%n", maxHeapUsed >> 20, memory.getHeapMemoryUsage().getUsed() >> 20);
+        System.exit(0);
+    }
+
+    private void sampleHeap() {
+        maxHeapUsed = Math.max(maxHeapUsed, memory.getHeapMemoryUsage().getUsed());
+    }
+
+    private static long metric(Iterable<Metric<?>> metrics, String name) {
+        for (Metric<?> metric : metrics) {
+            if (metric.getName().equals(name)) {
+                return metric.getValue().longValue();
+            }
+        }
+        return 0;
+    }
+}
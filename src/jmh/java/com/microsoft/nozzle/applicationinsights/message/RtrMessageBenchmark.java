@@ -0,0 +1,23 @@
+package com.microsoft.nozzle.applicationinsights.message;
+
+import com.microsoft.nozzle.applicationinsights.benchmark.SyntheticEnvelopes;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RtrMessageBenchmark {
+
+    @Benchmark
+    public void parseRtrMessage(Blackhole bh) {
+        RtrMessage rtr = new RtrMessage();
+        bh.consume(rtr.parseRtrMessage(SyntheticEnvelopes.RTR_MESSAGE));
+        bh.consume(rtr);
+    }
+}
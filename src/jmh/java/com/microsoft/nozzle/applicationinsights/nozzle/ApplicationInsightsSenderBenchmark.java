@@ -0,0 +1,65 @@
+package com.microsoft.nozzle.applicationinsights.nozzle;
+
+import com.microsoft.nozzle.applicationinsights.benchmark.NullTelemetryChannel;
+import com.microsoft.nozzle.applicationinsights.benchmark.SyntheticEnvelopes;
+import com.microsoft.nozzle.applicationinsights.message.CustomMetric;
+import com.microsoft.nozzle.applicationinsights.metric.MetricKey;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Metric aggregation with as many threads as the router executor
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ApplicationInsightsSenderBenchmark {
+
+    private static final int APPS = 40;
+
+    private static final int INSTANCES = 8;
+
+    private ApplicationInsightsSender sender;
+
+    private final Function<MetricKey, CustomMetric> metricFactory = key -> new CustomMetric(key.getName());
+
+    private String[] appIds;
+
+    private String[] instances;
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        int next;
+    }
+
+    @Setup
+    public void setup() {
+        sender = new ApplicationInsightsSender("00000000-0000-0000-0000-000000000000", new NullTelemetryChannel());
+        appIds = new String[APPS];
+        for (int i = 0; i < APPS; i++) {
+            appIds[i] = SyntheticEnvelopes.appId(i);
+        }
+        instances = new String[INSTANCES];
+        for (int i = 0; i < INSTANCES; i++) {
+            instances[i] = Integer.toString(i);
+        }
+    }
+
+    @Benchmark
+    @Threads(30)
+    public void trackMetric(ThreadState state) {
+        int i = state.next++ & Integer.MAX_VALUE;
+        MetricKey key = new MetricKey("Memory Bytes (MB)", appIds[i % APPS], instances[(i / APPS) % INSTANCES]);
+        sender.trackMetric(key, 256.0, metricFactory);
+    }
+
+    @TearDown(Level.Iteration)
+    public void flush() {
+        sender.sendMetrics();
+    }
+}
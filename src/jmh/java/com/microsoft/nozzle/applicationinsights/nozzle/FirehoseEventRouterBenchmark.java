@@ -0,0 +1,49 @@
+package com.microsoft.nozzle.applicationinsights.nozzle;
+
+import com.microsoft.nozzle.applicationinsights.benchmark.NullTelemetryChannel;
+import com.microsoft.nozzle.applicationinsights.benchmark.SyntheticEnvelopes;
+import com.microsoft.nozzle.applicationinsights.cache.AppDataCache;
+import com.microsoft.nozzle.applicationinsights.cache.AppDataCaches;
+import com.microsoft.nozzle.applicationinsights.config.NozzleProperties;
+import com.microsoft.nozzle.applicationinsights.config.RoutingConfigSource;
+import org.cloudfoundry.doppler.Envelope;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Envelope to telemetry conversion, per source type. Telemetries are discarded by the channel so only the nozzle code is measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FirehoseEventRouterBenchmark {
+
+    @Param({"RTR", "APP", "API", "STG", "SSH", "CONTAINER_METRIC"})
+    private String sourceType;
+
+    private FirehoseEventRouter router;
+
+    private Envelope envelope;
+
+    @Setup
+    public void setup() {
+        String appId = SyntheticEnvelopes.appId(0);
+        NozzleProperties properties = new NozzleProperties();
+        properties.setApplicationConfig("[map[APPLICATION_ID:" + appId + " INSTRUMENTATION_KEY:00000000-0000-0000-0000-000000000000]]");
+        properties.postConstruct();
+
+        AppDataCache appDataCache = AppDataCaches.withApps(properties, appId);
+        router = new FirehoseEventRouter(properties, appDataCache, ikey -> new NullTelemetryChannel(),
+                new RoutingConfigSource(properties), new AppSenderResolver(appDataCache));
+        envelope = SyntheticEnvelopes.envelope(appId, sourceType);
+    }
+
+    @Benchmark
+    public void routeEnvelope() {
+        router.routeEnvelope(envelope);
+    }
+}
@@ -0,0 +1,62 @@
+package com.microsoft.nozzle.applicationinsights.nozzle;
+
+import com.microsoft.nozzle.applicationinsights.cache.AppDataCache;
+import com.microsoft.nozzle.applicationinsights.channel.TelemetryChannelFactory;
+import com.microsoft.nozzle.applicationinsights.config.NozzleProperties;
+import com.microsoft.nozzle.applicationinsights.config.RoutingConfigSource;
+import org.cloudfoundry.doppler.DopplerClient;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Firehose consumer, dispatcher and router wired as in the application, without a Spring context
+ */
+public class NozzlePipeline {
+
+    private final FirehoseEventRouter router;
+
+    private final EnvelopeDispatcher dispatcher;
+
+    private final FirehoseConsumer consumer;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "pipeline-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public NozzlePipeline(NozzleProperties properties, AppDataCache appDataCache, DopplerClient dopplerClient, TelemetryChannelFactory channelFactory) {
+        RoutingConfigSource routingConfigSource = new RoutingConfigSource(properties);
+        AppSenderResolver senderResolver = new AppSenderResolver(appDataCache);
+        router = new FirehoseEventRouter(properties, appDataCache, channelFactory, routingConfigSource, senderResolver);
+        dispatcher = new EnvelopeDispatcher(router, properties);
+        consumer = new FirehoseConsumer(dopplerClient, properties, dispatcher, appDataCache, routingConfigSource, senderResolver);
+    }
+
+    public void start() {
+        dispatcher.start();
+        consumer.start();
+        // Same interval as the scheduled sendMetric of the router
+        scheduler.scheduleAtFixedRate(router::sendMetric, 60, 60, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop routing, then send the aggregated metrics and the batched telemetries
+     */
+    public void stop() {
+        consumer.stop();
+        dispatcher.stop();
+        scheduler.shutdownNow();
+        router.shutdown();
+    }
+
+    public EnvelopeDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public FirehoseConsumer getConsumer() {
+        return consumer;
+    }
+}
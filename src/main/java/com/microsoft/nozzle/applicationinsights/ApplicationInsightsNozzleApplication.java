@@ -3,16 +3,12 @@ package com.microsoft.nozzle.applicationinsights;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
-import org.springframework.core.task.TaskExecutor;
 import org.springframework.retry.annotation.EnableRetry;
 import org.springframework.scheduling.TaskScheduler;
-import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.concurrent.ConcurrentTaskScheduler;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
 @SpringBootApplication
-@EnableAsync
 @EnableRetry
 @EnableScheduling
 public class ApplicationInsightsNozzleApplication {
@@ -20,15 +16,6 @@ public class ApplicationInsightsNozzleApplication {
         SpringApplication.run(ApplicationInsightsNozzleApplication.class, args);
     }
 
-    @Bean
-    public TaskExecutor taskExecutor() {
-        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
-        executor.setMaxPoolSize(50);
-        executor.setCorePoolSize(30);
-
-        return executor;
-    }
-
     @Bean
     public TaskScheduler taskScheduler() {
         return new ConcurrentTaskScheduler();
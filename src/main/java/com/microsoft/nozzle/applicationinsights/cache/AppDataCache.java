@@ -1,136 +1,726 @@
 package com.microsoft.nozzle.applicationinsights.cache;
 
+import com.microsoft.nozzle.applicationinsights.config.NozzleProperties;
 import com.microsoft.nozzle.applicationinsights.message.BaseMessage;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.cloudfoundry.client.CloudFoundryClient;
+import org.cloudfoundry.client.v2.ClientV2Exception;
+import org.cloudfoundry.client.v2.PaginatedResponse;
+import org.cloudfoundry.client.v2.applications.GetApplicationRequest;
 import org.cloudfoundry.client.v2.applications.ListApplicationsRequest;
+import org.cloudfoundry.client.v2.events.EventEntity;
+import org.cloudfoundry.client.v2.events.ListEventsRequest;
+import org.cloudfoundry.client.v2.organizations.GetOrganizationRequest;
 import org.cloudfoundry.client.v2.organizations.ListOrganizationsRequest;
+import org.cloudfoundry.client.v2.spaces.GetSpaceRequest;
 import org.cloudfoundry.client.v2.spaces.ListSpacesRequest;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.scheduling.annotation.Scheduled;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import javax.annotation.PostConstruct;
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
 
+/**
+ * Cache of the app, space and organization names of the applications
+ * <p>
+ * The listings of the Cloud Controller are kept in concurrent maps, and resolved into one immutable {@link AppMetadata}
+ * per application, so the router threads enrich a message with a single lookup while the listings are updated.
+ * <p>
+ * At startup all apps, spaces and organizations are listed, with the pages of each listing fetched concurrently. When
+ * a snapshot path is configured, the cache is periodically written to disk and loaded from there at startup, serving
+ * names right away while the listings reconcile it with the Cloud Controller.
+ * Applications not in the cache are looked up in the background, one request per application at a time, and the cache
+ * is periodically refreshed with the entities changed since the previous refresh, taken from the audit events.
+ */
 @Slf4j
 @RequiredArgsConstructor
-public class AppDataCache {
+public class AppDataCache implements PublicMetrics {
+
+    // Audit events of the entities whose names or relations are cached
+    private static final List<String> REFRESH_EVENT_TYPES = Arrays.asList(
+            "audit.app.create", "audit.app.update", "audit.app.delete-request",
+            "audit.space.create", "audit.space.update", "audit.space.delete-request",
+            "audit.organization.create", "audit.organization.update", "audit.organization.delete-request");
+
+    private static final int RESULTS_PER_PAGE = 100;
+
+    // Overlap of consecutive refreshes, to tolerate clock skew with the Cloud Controller
+    private static final long REFRESH_OVERLAP_SECONDS = 60;
+
+    // Delay before an app, space or organization whose lookup failed, e.g. with a 5xx status, is looked up again
+    private static final long LOOKUP_RETRY_SECONDS = 10;
 
     private final CloudFoundryClient cfClient;
+    private final NozzleProperties properties;
+
+    private final Map<String, String> appIdToNameMap = new ConcurrentHashMap<>();
+    private final Map<String, String> spaceIdToNameMap = new ConcurrentHashMap<>();
+    private final Map<String, String> orgIdToNameMap = new ConcurrentHashMap<>();
+
+    private final Map<String, String> appIdToSpaceIdMap = new ConcurrentHashMap<>();
+    private final Map<String, String> spaceIdToOrgIdMap = new ConcurrentHashMap<>();
 
-    private final Map<String, String> appIdToNameMap = new HashMap<>();
-    private final Map<String, String> spaceIdToNameMap = new HashMap<>();
-    private final Map<String, String> orgIdToNameMap = new HashMap<>();
+    // Reverse relations, to resolve only the apps of a space or an organization when it changes
+    private final Map<String, Set<String>> spaceIdToAppIdsMap = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> orgIdToSpaceIdsMap = new ConcurrentHashMap<>();
 
-    private final Map<String, String> appIdToSpaceIdMap = new HashMap<>();
-    private final Map<String, String> spaceIdToOrgIdMap = new HashMap<>();
+    private final Map<String, AppMetadata> appMetadataMap = new ConcurrentHashMap<>();
+
+    // Called with the id of an app whose metadata was published or removed
+    private final List<Consumer<String>> changeListeners = new CopyOnWriteArrayList<>();
+
+    // Ids of the apps, spaces and organizations being looked up
+    private final Set<String> pendingLookups = ConcurrentHashMap.newKeySet();
+    // App id to the System.nanoTime() until which the app is known not to exist
+    private final Map<String, Long> notFoundUntil = new ConcurrentHashMap<>();
+    // Id of an app, space or organization whose lookup failed to the System.nanoTime() until which it is not retried
+    private final Map<String, Long> failedUntil = new ConcurrentHashMap<>();
+
+    private volatile Instant lastRefresh;
+
+    // Counted down when the listing of apps, spaces and organizations is done
+    private final CountDownLatch warmup = new CountDownLatch(3);
+    // Counted down when the cache is warm or loaded from a snapshot
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private volatile long warmupStart;
+    private volatile long warmupMillis = -1;
+    private volatile boolean listingFailed = false;
+
+    // Ids loaded from the snapshot, and ids seen by the listings, to remove the entities deleted since the snapshot
+    private final Set<String> snapshotIds = ConcurrentHashMap.newKeySet();
+    private final Set<String> listedIds = ConcurrentHashMap.newKeySet();
 
     @PostConstruct
     public void initializeCache() {
         log.info("Initializing App Data Cache");
 
-        getAllApps();
-        getAllSpaces();
-        getAllOrgs();
+        lastRefresh = Instant.now();
+        warmupStart = System.nanoTime();
+
+        loadSnapshot();
+
+        listAllPages("applications",
+                page -> cfClient.applicationsV2().list(ListApplicationsRequest.builder()
+                        .page(page)
+                        .resultsPerPage(RESULTS_PER_PAGE)
+                        .build()),
+                response -> response.getResources().forEach(app -> {
+                    addApplication(app.getMetadata().getId(), app.getEntity().getName(), app.getEntity().getSpaceId());
+                    listedIds.add(app.getMetadata().getId());
+                }));
+
+        listAllPages("spaces",
+                page -> cfClient.spaces().list(ListSpacesRequest.builder()
+                        .page(page)
+                        .resultsPerPage(RESULTS_PER_PAGE)
+                        .build()),
+                response -> response.getResources().forEach(space -> {
+                    addSpace(space.getMetadata().getId(), space.getEntity().getName(), space.getEntity().getOrganizationId());
+                    listedIds.add(space.getMetadata().getId());
+                }));
+
+        listAllPages("organizations",
+                page -> cfClient.organizations().list(ListOrganizationsRequest.builder()
+                        .page(page)
+                        .resultsPerPage(RESULTS_PER_PAGE)
+                        .build()),
+                response -> response.getResources().forEach(org -> {
+                    addOrganization(org.getMetadata().getId(), org.getEntity().getName());
+                    listedIds.add(org.getMetadata().getId());
+                }));
     }
 
     /**
-     * Get all apps
+     * Load the snapshot written by a previous run, if any, so the cache serves names before the listings complete
      */
-    private void getAllApps() {
-        getAppsFromPage(1);
+    private void loadSnapshot() {
+        if (!isSnapshotEnabled()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        AppDataSnapshot snapshot = AppDataSnapshot.read(Paths.get(properties.getAppCacheSnapshotPath()),
+                TimeUnit.SECONDS.toMillis(properties.getAppCacheSnapshotMaxAge()));
+        if (snapshot == null) {
+            return;
+        }
+
+        snapshot.getOrgIdToNameMap().forEach(this::addOrganization);
+        snapshot.getSpaceIdToNameMap().forEach((id, name) -> addSpace(id, name, snapshot.getSpaceIdToOrgIdMap().get(id)));
+        snapshot.getAppIdToNameMap().forEach((id, name) -> addApplication(id, name, snapshot.getAppIdToSpaceIdMap().get(id)));
+        snapshotIds.addAll(snapshot.getOrgIdToNameMap().keySet());
+        snapshotIds.addAll(snapshot.getSpaceIdToNameMap().keySet());
+        snapshotIds.addAll(snapshot.getAppIdToNameMap().keySet());
+
+        log.info("Loaded {} applications from the App Data Cache snapshot in {} ms", appMetadataMap.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        ready.countDown();
     }
 
     /**
-     * Get all spaces
+     * Write the cache to the snapshot file, once it is warm
      */
-    private void getAllSpaces() {
-        getSpacesFromPage(1);
+    @Scheduled(initialDelayString = "${app-cache-snapshot-interval:300000}", fixedDelayString = "${app-cache-snapshot-interval:300000}")
+    public void writeSnapshot() {
+        if (!isSnapshotEnabled() || warmup.getCount() > 0) {
+            return;
+        }
+
+        Path path = Paths.get(properties.getAppCacheSnapshotPath());
+        try {
+            new AppDataSnapshot(System.currentTimeMillis(), appIdToNameMap, appIdToSpaceIdMap, spaceIdToNameMap, spaceIdToOrgIdMap, orgIdToNameMap)
+                    .write(path);
+            log.debug("Wrote App Data Cache snapshot {}", path);
+        } catch (IOException e) {
+            log.error("Error writing App Data Cache snapshot {}", path, e);
+        }
+    }
+
+    private boolean isSnapshotEnabled() {
+        return properties.getAppCacheSnapshotPath() != null && !properties.getAppCacheSnapshotPath().isEmpty();
     }
 
     /**
-     * Get all organizations
+     * List all pages of an entity: the first page gives the number of pages, the remaining pages are then requested
+     * concurrently, up to the warm-up concurrency
+     *
+     * @param entity   name of the entity for logging
+     * @param listPage requests a page
+     * @param onPage   adds the resources of a page
      */
-    private void getAllOrgs() {
-        getOrgsFromPage(1);
+    private <R extends PaginatedResponse<?>> void listAllPages(String entity, IntFunction<Mono<R>> listPage, Consumer<R> onPage) {
+        listPage.apply(1)
+                .subscribe(first -> {
+                            onPage.accept(first);
+                            int remaining = first.getTotalPages() == null ? 0 : Math.max(0, first.getTotalPages() - 1);
+                            log.debug("Listing {} pages of {}", remaining + 1, entity);
+                            Flux.range(2, remaining)
+                                    // A failed page is skipped, so it does not cancel the pages not fetched yet
+                                    .flatMap(page -> listPage.apply(page)
+                                                    .onErrorResume(t -> {
+                                                        log.error("Error listing {} of page {}", entity, page, t);
+                                                        listingFailed = true;
+                                                        return Mono.empty();
+                                                    }),
+                                            Math.max(1, properties.getAppCacheWarmupConcurrency()))
+                                    .subscribe(onPage,
+                                            t -> {
+                                                listingFailed = true;
+                                                listingDone(entity);
+                                            },
+                                            () -> listingDone(entity));
+                        },
+                        t -> {
+                            log.error("Error listing {} of page 1", entity, t);
+                            listingFailed = true;
+                            listingDone(entity);
+                        });
     }
 
     /**
-     * Get all apps starting from the page
+     * Called when all pages of a listing are received, or the listing failed
      *
-     * @param page
+     * @param entity
+     */
+    private synchronized void listingDone(String entity) {
+        resolveAll();
+        log.debug("Listed all {}", entity);
+
+        warmup.countDown();
+        if (warmup.getCount() == 0) {
+            if (!listingFailed) {
+                removeNotListed();
+            }
+            snapshotIds.clear();
+            listedIds.clear();
+
+            warmupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - warmupStart);
+            log.info("App Data Cache warmed up in {} ms, {} applications", warmupMillis, appMetadataMap.size());
+            ready.countDown();
+        }
+    }
+
+    /**
+     * Remove the entities of the snapshot that the complete listings did not return, they were deleted since the
+     * snapshot was written
+     */
+    private void removeNotListed() {
+        for (String id : snapshotIds) {
+            if (listedIds.contains(id)) {
+                continue;
+            }
+            if (appIdToNameMap.containsKey(id)) {
+                removeApplication(id);
+            } else if (spaceIdToNameMap.containsKey(id)) {
+                spaceIdToNameMap.remove(id);
+                unindex(orgIdToSpaceIdsMap, spaceIdToOrgIdMap.remove(id), id);
+            } else {
+                orgIdToNameMap.remove(id);
+            }
+        }
+        resolveAll();
+    }
+
+    /**
+     * Wait until all apps, spaces and organizations are listed, or loaded from the snapshot
+     *
+     * @param timeout
+     * @param unit
+     * @return false if the timeout elapsed before the cache was warm
+     * @throws InterruptedException
      */
-    private void getAppsFromPage(int page) {
-        if (page <= 0) {
+    public boolean awaitWarmup(long timeout, TimeUnit unit) throws InterruptedException {
+        return ready.await(timeout, unit);
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<Metric<?>>();
+        if (warmupMillis >= 0) {
+            metrics.add(new Metric<Long>("nozzle.appcache.warmup.millis", warmupMillis));
+        }
+        metrics.add(new Metric<Integer>("nozzle.appcache.apps", appMetadataMap.size()));
+        return metrics;
+    }
+
+    /**
+     * Look up an application that is not in the cache, together with its space and organization if they are not cached
+     * either. Only one request per application is in flight, applications not found are not looked up again until
+     * the miss TTL expires, and failed lookups are retried on the next request for the application after a delay.
+     *
+     * @param appId
+     */
+    private void lookupApplication(String appId) {
+        if (isWaiting(notFoundUntil, appId) || isWaiting(failedUntil, appId)) {
+            return;
+        }
+
+        if (!pendingLookups.add(appId)) {
             return;
         }
 
+        log.debug("Looking up application {}", appId);
         cfClient.applicationsV2()
-                .list(ListApplicationsRequest.builder()
-                        .page(page)
-                        .resultsPerPage(100)
+                .get(GetApplicationRequest.builder()
+                        .applicationId(appId)
                         .build())
                 .subscribe(response -> {
-                            response.getResources().forEach(app -> {
-                                appIdToNameMap.put(app.getMetadata().getId(), app.getEntity().getName());
-                                appIdToSpaceIdMap.put(app.getMetadata().getId(), app.getEntity().getSpaceId());
-                            });
-                            if (page < response.getTotalPages()) {
-                                getAppsFromPage(page + 1);
+                            String spaceId = response.getEntity().getSpaceId();
+                            addApplication(appId, response.getEntity().getName(), spaceId);
+                            pendingLookups.remove(appId);
+                            if (spaceId != null && !spaceIdToNameMap.containsKey(spaceId)) {
+                                lookupSpace(spaceId);
                             }
                         },
-                        t -> log.error("Error listing applications of page {}", page, t));
+                        t -> {
+                            if (isNotFound(t)) {
+                                log.debug("Application {} not found", appId);
+                                notFoundUntil.put(appId, System.nanoTime() + TimeUnit.SECONDS.toNanos(properties.getAppCacheMissTtl()));
+                            } else {
+                                log.error("Error getting application {}", appId, t);
+                                retryLater(appId);
+                            }
+                            pendingLookups.remove(appId);
+                        });
     }
 
     /**
-     * Get all spaces starting from the page
+     * Look up a space, and its organization if it is not cached
      *
-     * @param page
+     * @param spaceId
      */
-    private void getSpacesFromPage(int page) {
-        if (page <= 0) {
+    private void lookupSpace(String spaceId) {
+        if (isWaiting(failedUntil, spaceId) || !pendingLookups.add(spaceId)) {
             return;
         }
 
         cfClient.spaces()
-                .list(ListSpacesRequest.builder()
-                        .page(page)
-                        .resultsPerPage(100)
+                .get(GetSpaceRequest.builder()
+                        .spaceId(spaceId)
                         .build())
                 .subscribe(response -> {
-                            response.getResources().forEach(space -> {
-                                spaceIdToNameMap.put(space.getMetadata().getId(), space.getEntity().getName());
-                                spaceIdToOrgIdMap.put(space.getMetadata().getId(), space.getEntity().getOrganizationId());
-                            });
-                            if (page < response.getTotalPages()) {
-                                getSpacesFromPage(page + 1);
+                            String orgId = response.getEntity().getOrganizationId();
+                            addSpace(spaceId, response.getEntity().getName(), orgId);
+                            resolveSpace(spaceId);
+                            pendingLookups.remove(spaceId);
+                            if (orgId != null && !orgIdToNameMap.containsKey(orgId)) {
+                                lookupOrganization(orgId);
                             }
                         },
-                        t -> log.error("Error listing spaces of page {}", page, t));
+                        t -> {
+                            if (isNotFound(t)) {
+                                removeSpace(spaceId);
+                            } else {
+                                log.error("Error getting space {}", spaceId, t);
+                                retryLater(spaceId);
+                            }
+                            pendingLookups.remove(spaceId);
+                        });
     }
 
     /**
-     * Get all organizations starting from the page
+     * Look up an organization
      *
-     * @param page
+     * @param orgId
      */
-    private void getOrgsFromPage(int page) {
-        if (page <= 0) {
+    private void lookupOrganization(String orgId) {
+        if (isWaiting(failedUntil, orgId) || !pendingLookups.add(orgId)) {
             return;
         }
 
         cfClient.organizations()
-                .list(ListOrganizationsRequest.builder()
+                .get(GetOrganizationRequest.builder()
+                        .organizationId(orgId)
+                        .build())
+                .subscribe(response -> {
+                            addOrganization(orgId, response.getEntity().getName());
+                            resolveOrganization(orgId);
+                            pendingLookups.remove(orgId);
+                        },
+                        t -> {
+                            if (isNotFound(t)) {
+                                removeOrganization(orgId);
+                            } else {
+                                log.error("Error getting organization {}", orgId, t);
+                                retryLater(orgId);
+                            }
+                            pendingLookups.remove(orgId);
+                        });
+    }
+
+    /**
+     * @param until id to the System.nanoTime() until which it is not looked up
+     * @param id
+     * @return whether the id is not to be looked up yet, the expired entry is removed
+     */
+    private static boolean isWaiting(Map<String, Long> until, String id) {
+        Long time = until.get(id);
+        if (time == null) {
+            return false;
+        }
+        if (System.nanoTime() - time < 0) {
+            return true;
+        }
+        until.remove(id, time);
+        return false;
+    }
+
+    private void retryLater(String id) {
+        failedUntil.put(id, System.nanoTime() + TimeUnit.SECONDS.toNanos(LOOKUP_RETRY_SECONDS));
+    }
+
+    private static boolean isNotFound(Throwable t) {
+        return t instanceof ClientV2Exception && Integer.valueOf(404).equals(((ClientV2Exception) t).getStatusCode());
+    }
+
+    /**
+     * Refresh the apps, spaces and organizations changed since the previous refresh
+     */
+    @Scheduled(initialDelayString = "${app-cache-refresh-interval:300000}", fixedDelayString = "${app-cache-refresh-interval:300000}")
+    public void refresh() {
+        Instant since = lastRefresh;
+        if (since == null) {
+            return;
+        }
+        lastRefresh = Instant.now();
+
+        String timestamp = DateTimeFormatter.ISO_INSTANT.format(since.minusSeconds(REFRESH_OVERLAP_SECONDS).truncatedTo(ChronoUnit.SECONDS));
+        log.debug("Refreshing App Data Cache with the changes since {}", timestamp);
+        getEventsFromPage(timestamp, 1);
+    }
+
+    /**
+     * Apply the audit events since the timestamp starting from the page
+     *
+     * @param timestamp
+     * @param page
+     */
+    private void getEventsFromPage(String timestamp, int page) {
+        cfClient.events()
+                .list(ListEventsRequest.builder()
+                        .timestamp(timestamp)
+                        .types(REFRESH_EVENT_TYPES)
                         .page(page)
-                        .resultsPerPage(100)
+                        .resultsPerPage(RESULTS_PER_PAGE)
                         .build())
                 .subscribe(response -> {
-                            response.getResources().forEach(org -> orgIdToNameMap.put(org.getMetadata().getId(), org.getEntity().getName()));
+                            response.getResources().forEach(event -> applyEvent(event.getEntity()));
                             if (page < response.getTotalPages()) {
-                                getOrgsFromPage(page + 1);
+                                getEventsFromPage(timestamp, page + 1);
                             }
                         },
-                        t -> log.error("Error listing organizations of page {}", page, t));
+                        t -> log.error("Error listing events of page {}", page, t));
+    }
+
+    /**
+     * Remove a deleted entity, or look up a created or updated one again
+     *
+     * @param event
+     */
+    private void applyEvent(EventEntity event) {
+        String id = event.getActee();
+        String type = event.getType();
+        if (id == null || type == null || event.getActeeType() == null) {
+            return;
+        }
+
+        boolean deleted = type.endsWith("delete-request");
+        switch (event.getActeeType()) {
+            case "app":
+                if (deleted) {
+                    removeApplication(id);
+                } else {
+                    notFoundUntil.remove(id);
+                    lookupApplication(id);
+                }
+                break;
+            case "space":
+                if (deleted) {
+                    removeSpace(id);
+                } else {
+                    lookupSpace(id);
+                }
+                break;
+            case "organization":
+                if (deleted) {
+                    removeOrganization(id);
+                } else {
+                    lookupOrganization(id);
+                }
+                break;
+            default:
+                log.trace("Ignoring event {} of {}", type, id);
+        }
+    }
+
+    /**
+     * Add an application and resolve its metadata
+     *
+     * @param appId
+     * @param name
+     * @param spaceId
+     */
+    void addApplication(String appId, String name, String spaceId) {
+        put(appIdToNameMap, appId, name);
+        String previousSpaceId = put(appIdToSpaceIdMap, appId, spaceId);
+        if (previousSpaceId != null && !previousSpaceId.equals(spaceId)) {
+            unindex(spaceIdToAppIdsMap, previousSpaceId, appId);
+        }
+        index(spaceIdToAppIdsMap, spaceId, appId);
+        resolve(appId);
+    }
+
+    /**
+     * Add a space, the metadata of its apps is resolved by {@link #resolveSpace(String)} or {@link #resolveAll()}
+     *
+     * @param spaceId
+     * @param name
+     * @param orgId
+     */
+    void addSpace(String spaceId, String name, String orgId) {
+        put(spaceIdToNameMap, spaceId, name);
+        String previousOrgId = put(spaceIdToOrgIdMap, spaceId, orgId);
+        if (previousOrgId != null && !previousOrgId.equals(orgId)) {
+            unindex(orgIdToSpaceIdsMap, previousOrgId, spaceId);
+        }
+        index(orgIdToSpaceIdsMap, orgId, spaceId);
+    }
+
+    /**
+     * Add an organization, the metadata of its apps is resolved by {@link #resolveOrganization(String)} or
+     * {@link #resolveAll()}
+     *
+     * @param orgId
+     * @param name
+     */
+    void addOrganization(String orgId, String name) {
+        put(orgIdToNameMap, orgId, name);
+    }
+
+    private void removeApplication(String appId) {
+        appIdToNameMap.remove(appId);
+        unindex(spaceIdToAppIdsMap, appIdToSpaceIdMap.remove(appId), appId);
+        if (appMetadataMap.remove(appId) != null) {
+            notifyChange(appId);
+        }
+    }
+
+    private void removeSpace(String spaceId) {
+        spaceIdToNameMap.remove(spaceId);
+        unindex(orgIdToSpaceIdsMap, spaceIdToOrgIdMap.remove(spaceId), spaceId);
+        resolveSpace(spaceId);
+    }
+
+    private void removeOrganization(String orgId) {
+        orgIdToNameMap.remove(orgId);
+        resolveOrganization(orgId);
+    }
+
+    /**
+     * Concurrent maps do not take null values, a missing value is stored as no entry
+     *
+     * @return the previous value
+     */
+    private static String put(Map<String, String> map, String key, String value) {
+        return value == null ? map.remove(key) : map.put(key, value);
+    }
+
+    /**
+     * Add an id to the ids related to a key, atomically with the removal of an emptied set by {@link #unindex}
+     */
+    private static void index(Map<String, Set<String>> index, String key, String id) {
+        if (key != null) {
+            index.compute(key, (k, ids) -> {
+                Set<String> updated = ids == null ? ConcurrentHashMap.newKeySet() : ids;
+                updated.add(id);
+                return updated;
+            });
+        }
+    }
+
+    private static void unindex(Map<String, Set<String>> index, String key, String id) {
+        if (key != null) {
+            index.computeIfPresent(key, (k, ids) -> {
+                ids.remove(id);
+                return ids.isEmpty() ? null : ids;
+            });
+        }
+    }
+
+    /**
+     * Resolve the metadata of an app from the listings and publish it
+     *
+     * @param appId
+     */
+    private void resolve(String appId) {
+        // Resolved under the lock of the entry, so concurrent resolves of an app publish the latest listings last
+        boolean[] changed = {false};
+        appMetadataMap.compute(appId, (id, current) -> {
+            String spaceId = appIdToSpaceIdMap.get(appId);
+            if (spaceId == null && !appIdToNameMap.containsKey(appId)) {
+                // Removed since the resolve was requested
+                changed[0] = current != null;
+                return null;
+            }
+            String orgId = spaceId == null ? null : spaceIdToOrgIdMap.get(spaceId);
+            AppMetadata metadata = new AppMetadata(appId, appIdToNameMap.get(appId),
+                    spaceId, spaceId == null ? null : spaceIdToNameMap.get(spaceId),
+                    orgId, orgId == null ? null : orgIdToNameMap.get(orgId));
+            if (metadata.equals(current)) {
+                return current;
+            }
+            changed[0] = true;
+            return metadata;
+        });
+        if (changed[0]) {
+            notifyChange(appId);
+        }
+    }
+
+    private void notifyChange(String appId) {
+        for (Consumer<String> listener : changeListeners) {
+            listener.accept(appId);
+        }
+    }
+
+    /**
+     * Add a listener called with the id of an app when its metadata is published, changed or removed, e.g. when the
+     * app is moved to another space, or its space or organization is renamed
+     *
+     * @param listener
+     */
+    public void addChangeListener(Consumer<String> listener) {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * Resolve the metadata of all apps, after the listings or the snapshot added spaces and organizations
+     */
+    private void resolveAll() {
+        appIdToSpaceIdMap.keySet().forEach(this::resolve);
+    }
+
+    /**
+     * Resolve the metadata of the apps of a space, after it was added, changed or removed
+     *
+     * @param spaceId
+     */
+    private void resolveSpace(String spaceId) {
+        Set<String> appIds = spaceIdToAppIdsMap.get(spaceId);
+        if (appIds != null) {
+            appIds.forEach(this::resolve);
+        }
+    }
+
+    /**
+     * Resolve the metadata of the apps of the spaces of an organization, after it was added, changed or removed
+     *
+     * @param orgId
+     */
+    private void resolveOrganization(String orgId) {
+        Set<String> spaceIds = orgIdToSpaceIdsMap.get(orgId);
+        if (spaceIds != null) {
+            spaceIds.forEach(this::resolveSpace);
+        }
+    }
+
+    /**
+     * Get the metadata of an application
+     *
+     * @param applicationId
+     * @return null if the application is not known
+     */
+    public AppMetadata getAppMetadata(String applicationId) {
+        return appMetadataMap.get(applicationId);
+    }
+
+    /**
+     * Get the metadata of an application, and look it up in the background if it is not known, or its space or
+     * organization if their names are not known, e.g. after a failed lookup
+     *
+     * @param applicationId
+     * @return null if the application is not known yet
+     */
+    public AppMetadata getOrLookupAppMetadata(String applicationId) {
+        AppMetadata metadata = appMetadataMap.get(applicationId);
+        if (metadata == null) {
+            lookupApplication(applicationId);
+        } else if (metadata.getSpaceId() != null && metadata.getSpaceName() == null) {
+            lookupSpace(metadata.getSpaceId());
+        } else if (metadata.getOrganizationId() != null && metadata.getOrganizationName() == null) {
+            lookupOrganization(metadata.getOrganizationId());
+        }
+        return metadata;
+    }
+
+    /**
+     * @param metadata
+     * @return whether the names of the app, its space and its organization are all known
+     */
+    public static boolean isComplete(AppMetadata metadata) {
+        return metadata != null && metadata.getApplicationName() != null
+                && metadata.getSpaceName() != null && metadata.getOrganizationName() != null;
     }
 
     public void getAppData(String applicationId, BaseMessage message) {
@@ -138,13 +728,10 @@ public class AppDataCache {
             return;
         }
 
-        message.setApplicationId(applicationId);
-        message.setApplicationName(appIdToNameMap.get(applicationId));
-        String spaceId = appIdToSpaceIdMap.get(applicationId);
-        message.setSpaceId(spaceId);
-        message.setSpaceName(spaceIdToNameMap.get(spaceId));
-        String orgId = spaceIdToOrgIdMap.get(spaceId);
-        message.setOrganizationId(orgId);
-        message.setOrganizationName(orgIdToNameMap.get(orgId));
+        AppMetadata metadata = getOrLookupAppMetadata(applicationId);
+        if (metadata == null) {
+            metadata = AppMetadata.unresolved(applicationId);
+        }
+        message.setAppMetadata(metadata);
     }
 }
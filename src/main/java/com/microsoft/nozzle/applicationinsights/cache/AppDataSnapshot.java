@@ -0,0 +1,177 @@
+package com.microsoft.nozzle.applicationinsights.cache;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of the app data cache listings, so a restarted nozzle can enrich telemetries before the Cloud
+ * Controller is listed again
+ * <p>
+ * Layout: magic, format version, creation time in epoch milliseconds, the apps (id, name, space id), the spaces
+ * (id, name, organization id) and the organizations (id, name), each table prefixed by its size, followed by the CRC32
+ * of everything before it. Files with another magic or version, a wrong checksum, or older than the maximum age are
+ * ignored.
+ */
+@Slf4j
+@Getter
+class AppDataSnapshot {
+
+    private static final int MAGIC = 0x41494e43;
+
+    private static final int VERSION = 1;
+
+    private final long createdMillis;
+
+    private final Map<String, String> appIdToNameMap;
+    private final Map<String, String> appIdToSpaceIdMap;
+    private final Map<String, String> spaceIdToNameMap;
+    private final Map<String, String> spaceIdToOrgIdMap;
+    private final Map<String, String> orgIdToNameMap;
+
+    AppDataSnapshot(long createdMillis,
+                    Map<String, String> appIdToNameMap, Map<String, String> appIdToSpaceIdMap,
+                    Map<String, String> spaceIdToNameMap, Map<String, String> spaceIdToOrgIdMap,
+                    Map<String, String> orgIdToNameMap) {
+        this.createdMillis = createdMillis;
+        this.appIdToNameMap = appIdToNameMap;
+        this.appIdToSpaceIdMap = appIdToSpaceIdMap;
+        this.spaceIdToNameMap = spaceIdToNameMap;
+        this.spaceIdToOrgIdMap = spaceIdToOrgIdMap;
+        this.orgIdToNameMap = orgIdToNameMap;
+    }
+
+    /**
+     * Write the snapshot to a temporary file, then move it over the previous snapshot
+     *
+     * @param path
+     * @throws IOException
+     */
+    void write(Path path) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (OutputStream file = Files.newOutputStream(temp)) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(createdMillis);
+
+            writeTable(out, appIdToNameMap, appIdToSpaceIdMap);
+            writeTable(out, spaceIdToNameMap, spaceIdToOrgIdMap);
+            writeTable(out, orgIdToNameMap, null);
+
+            out.flush();
+            long checksum = checked.getChecksum().getValue();
+            out.writeLong(checksum);
+            out.flush();
+        }
+
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeTable(DataOutputStream out, Map<String, String> names, Map<String, String> parents) throws IOException {
+        // Snapshot of the entries, the maps may change while writing
+        Map<String, String> entries = new HashMap<String, String>(names);
+        out.writeInt(entries.size());
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+            if (parents != null) {
+                String parent = parents.get(entry.getKey());
+                out.writeUTF(parent == null ? "" : parent);
+            }
+        }
+    }
+
+    /**
+     * Read a snapshot
+     *
+     * @param path
+     * @param maxAgeMillis
+     * @return null if there is no snapshot, or it is corrupt, of another version, or older than the maximum age
+     */
+    static AppDataSnapshot read(Path path, long maxAgeMillis) {
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+
+        try {
+            byte[] bytes = Files.readAllBytes(path);
+            if (bytes.length < 24) {
+                log.warn("Ignoring truncated App Data Cache snapshot {}", path);
+                return null;
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 8);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            in.skipBytes(bytes.length - 8);
+            if (in.readLong() != crc.getValue()) {
+                log.warn("Ignoring corrupt App Data Cache snapshot {}", path);
+                return null;
+            }
+
+            in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+            if (in.readInt() != MAGIC) {
+                log.warn("Ignoring {}, not an App Data Cache snapshot", path);
+                return null;
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                log.warn("Ignoring App Data Cache snapshot {} of version {}, expected version {}", path, version, VERSION);
+                return null;
+            }
+            long createdMillis = in.readLong();
+            if (System.currentTimeMillis() - createdMillis > maxAgeMillis) {
+                log.info("Ignoring stale App Data Cache snapshot {}", path);
+                return null;
+            }
+
+            Map<String, String> appIdToNameMap = new HashMap<String, String>();
+            Map<String, String> appIdToSpaceIdMap = new HashMap<String, String>();
+            Map<String, String> spaceIdToNameMap = new HashMap<String, String>();
+            Map<String, String> spaceIdToOrgIdMap = new HashMap<String, String>();
+            Map<String, String> orgIdToNameMap = new HashMap<String, String>();
+            readTable(in, appIdToNameMap, appIdToSpaceIdMap);
+            readTable(in, spaceIdToNameMap, spaceIdToOrgIdMap);
+            readTable(in, orgIdToNameMap, null);
+
+            return new AppDataSnapshot(createdMillis, appIdToNameMap, appIdToSpaceIdMap, spaceIdToNameMap, spaceIdToOrgIdMap, orgIdToNameMap);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Ignoring unreadable App Data Cache snapshot {}: {}", path, e.getMessage());
+            return null;
+        }
+    }
+
+    private static void readTable(DataInputStream in, Map<String, String> names, Map<String, String> parents) throws IOException {
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            String id = in.readUTF();
+            names.put(id, in.readUTF());
+            if (parents != null) {
+                String parent = in.readUTF();
+                if (!parent.isEmpty()) {
+                    parents.put(id, parent);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.microsoft.nozzle.applicationinsights.cache;
+
+import lombok.Value;
+
+/**
+ * Resolved names and ids of an application, its space and its organization
+ */
+@Value
+public class AppMetadata {
+
+    /**
+     * Metadata of messages without an application id
+     */
+    public static final AppMetadata EMPTY = new AppMetadata(null, null, null, null, null, null);
+
+    private String applicationId;
+
+    private String applicationName;
+
+    private String spaceId;
+
+    private String spaceName;
+
+    private String organizationId;
+
+    private String organizationName;
+
+    /**
+     * Metadata of an application not known to the cache
+     *
+     * @param applicationId
+     * @return
+     */
+    public static AppMetadata unresolved(String applicationId) {
+        return new AppMetadata(applicationId, null, null, null, null, null);
+    }
+}
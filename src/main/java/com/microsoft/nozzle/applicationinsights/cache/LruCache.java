@@ -0,0 +1,76 @@
+package com.microsoft.nozzle.applicationinsights.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded cache evicting the least recently used entries
+ * <p>
+ * The entries are spread over independently locked stripes, each an access ordered LinkedHashMap holding its share of
+ * the maximum size, so concurrent lookups of different keys rarely contend.
+ */
+public class LruCache<K, V> {
+
+    private final Stripe<K, V>[] stripes;
+
+    /**
+     * @param maxSize maximum number of entries
+     * @param stripes number of independently locked stripes, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public LruCache(int maxSize, int stripes) {
+        int count = 1;
+        while (count < stripes) {
+            count <<= 1;
+        }
+        int stripeSize = Math.max(1, maxSize / count);
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new Stripe<K, V>(stripeSize);
+        }
+    }
+
+    public V get(K key) {
+        Stripe<K, V> stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.get(key);
+        }
+    }
+
+    public void put(K key, V value) {
+        Stripe<K, V> stripe = stripe(key);
+        synchronized (stripe) {
+            stripe.put(key, value);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe<K, V> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    private Stripe<K, V> stripe(K key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (stripes.length - 1)];
+    }
+
+    private static final class Stripe<K, V> extends LinkedHashMap<K, V> {
+        private final int maxSize;
+
+        private Stripe(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
@@ -0,0 +1,628 @@
+package com.microsoft.nozzle.applicationinsights.channel;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.applicationinsights.channel.TelemetryChannel;
+import com.microsoft.applicationinsights.channel.TelemetrySampler;
+import com.microsoft.applicationinsights.telemetry.JsonTelemetryDataSerializer;
+import com.microsoft.applicationinsights.telemetry.Telemetry;
+import com.microsoft.nozzle.applicationinsights.config.NozzleProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transmission channel of one instrumentation key
+ * <p>
+ * Telemetries are serialized when tracked and appended to the current batch. A batch is sealed when it reaches the
+ * maximum number of items or bytes, or when its first item waited for the linger time, then sent gzip compressed to the
+ * ingestion endpoint in a single request by one of the sender threads of the channel.
+ * <p>
+ * Each channel has its own buffers, http client, sender threads and circuit breaker, so an instrumentation key
+ * throttled or slow to ingest does not delay the others. After a failed transmission the channel stops sending until
+ * the backoff or Retry-After delay elapsed, and retries the batch later instead of blocking a sender thread. Without a
+ * spill directory, the oldest batches are dropped when too many are waiting.
+ * <p>
+ * With a spill directory, batches that could not be sent, and batches sealed while too many are waiting to be sent,
+ * are appended to a spill log on disk instead of being dropped or kept on the heap. The spill log is replayed at a
+ * limited rate once the ingestion endpoint accepts batches again, and after a restart.
+ */
+@Slf4j
+public class BatchingTelemetryChannel implements TelemetryChannel {
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static final long BACKOFF_BASE_MILLIS = 1000;
+
+    // Delay before replaying the spill log again after a failed transmission, unless a new batch is sent meanwhile
+    private static final long REPLAY_PROBE_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    // Time given to the sender threads to spill their batch once their transmission is aborted when stopping
+    private static final long STOP_GRACE_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private enum Outcome {
+        SENT, REJECTED, FAILED,
+        // Failed before the circuit closed again, e.g. while throttled, not counted as an attempt of the batch
+        FAILED_AGAIN;
+
+        boolean isFailed() {
+            return this == FAILED || this == FAILED_AGAIN;
+        }
+    }
+
+    private final String name;
+    private final String endpoint;
+    private final int maxItems;
+    private final int maxBytes;
+    private final long lingerNanos;
+    private final TransmissionMetrics metrics;
+
+    private final SpillLog spill;
+    private final int spillThreshold;
+    private final long replayIntervalNanos;
+    private volatile long nextReplayNanos = System.nanoTime();
+    private volatile boolean ingestionFailing = false;
+
+    private final CloseableHttpClient httpClient;
+    private final CircuitBreaker breaker;
+    private final int maxPendingBatches;
+
+    private final Object lock = new Object();
+    // Batch being filled, guarded by lock
+    private TelemetryBatch current;
+    // Batches waiting to be sent, batches to retry are put back at the head
+    private final BlockingDeque<TelemetryBatch> sealed = new LinkedBlockingDeque<TelemetryBatch>();
+
+    // The first sender thread also replays the spill log
+    private final List<Thread> senders = new ArrayList<Thread>();
+    private volatile boolean running = true;
+    private boolean developerMode = false;
+
+    public BatchingTelemetryChannel(String instrumentationKey, NozzleProperties properties, TransmissionMetrics metrics) {
+        this.name = "ai-channel-" + (instrumentationKey == null ? "" : instrumentationKey.substring(0, Math.min(8, instrumentationKey.length())));
+        this.endpoint = properties.getIngestionEndpoint();
+        this.maxItems = Math.max(1, properties.getBatchMaxItems());
+        this.maxBytes = Math.max(1, properties.getBatchMaxBytes());
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, properties.getBatchLingerMillis()));
+        this.metrics = metrics;
+        this.spill = openSpillLog(instrumentationKey, properties);
+        this.spillThreshold = Math.max(1, properties.getSpillThresholdBatches());
+        this.replayIntervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, properties.getSpillReplayBatchesPerSecond());
+        this.breaker = new CircuitBreaker(BACKOFF_BASE_MILLIS, properties.getChannelBackoffMaxMillis());
+        this.maxPendingBatches = Math.max(1, properties.getChannelMaxPendingBatches());
+
+        int sendThreads = Math.max(1, properties.getChannelSendThreads());
+        this.httpClient = HttpClients.custom()
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(10000)
+                        .setSocketTimeout(30000)
+                        .build())
+                .setMaxConnPerRoute(sendThreads)
+                .setMaxConnTotal(sendThreads)
+                .useSystemProperties()
+                .build();
+
+        for (int i = 0; i < sendThreads; i++) {
+            boolean replaying = i == 0;
+            Thread sender = new Thread(() -> transmitBatches(replaying), name + "-" + i);
+            sender.setDaemon(true);
+            senders.add(sender);
+        }
+        senders.forEach(Thread::start);
+    }
+
+    private SpillLog openSpillLog(String instrumentationKey, NozzleProperties properties) {
+        if (properties.getSpillDirectory() == null || instrumentationKey == null) {
+            return null;
+        }
+        try {
+            SpillLog spillLog = new SpillLog(Paths.get(properties.getSpillDirectory(), instrumentationKey),
+                    properties.getSpillSegmentBytes(), properties.getSpillMaxBytes());
+            if (!spillLog.isEmpty()) {
+                log.info("Channel {} resumes replaying its spill log", name);
+            }
+            return spillLog;
+        } catch (IOException e) {
+            log.error("Error opening the spill log of channel {}, spilling is disabled: {}", name, e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isDeveloperMode() {
+        return developerMode;
+    }
+
+    @Override
+    public void setDeveloperMode(boolean value) {
+        developerMode = value;
+    }
+
+    @Override
+    public void setSampler(TelemetrySampler telemetrySampler) {
+        // All telemetries are sent, sampling is done before tracking
+    }
+
+    /**
+     * Serialize the telemetry and add it to the current batch
+     *
+     * @param telemetry
+     */
+    @Override
+    public void send(Telemetry telemetry) {
+        if (!running) {
+            return;
+        }
+
+        byte[] item;
+        try {
+            item = serialize(telemetry);
+        } catch (IOException e) {
+            log.error("Error serializing telemetry: {}", e.getMessage());
+            return;
+        }
+
+        TelemetryBatch full = null;
+        synchronized (lock) {
+            if (current == null) {
+                current = new TelemetryBatch();
+            }
+            current.add(item);
+            if (current.getCount() >= maxItems) {
+                full = seal(FlushReason.COUNT);
+            } else if (current.getBytes() >= maxBytes) {
+                full = seal(FlushReason.BYTES);
+            }
+        }
+
+        if (full != null) {
+            enqueue(full);
+        }
+    }
+
+    /**
+     * Queue a sealed batch to be sent, or spill it when too many batches are already waiting. Without spilling, the
+     * oldest batch is dropped when the maximum number of batches are waiting.
+     *
+     * @param batch
+     */
+    private void enqueue(TelemetryBatch batch) {
+        if (spill != null && sealed.size() >= spillThreshold) {
+            try {
+                spill(batch.toGzip(), batch.getCount());
+            } catch (IOException e) {
+                log.error("Error compressing batch: {}", e.getMessage());
+                metrics.recordFailed();
+            }
+            return;
+        }
+        sealed.addLast(batch);
+        if (spill == null) {
+            while (sealed.size() > maxPendingBatches) {
+                TelemetryBatch dropped = sealed.pollFirst();
+                if (dropped != null) {
+                    log.warn("Dropped batch of {} telemetries on channel {}, too many batches waiting", dropped.getCount(), name);
+                    metrics.recordDropped(dropped.getCount());
+                }
+            }
+        }
+    }
+
+    private void spill(byte[] body, int count) {
+        // A sender interrupted when stopping still spills its batch, file channels fail on an interrupted thread
+        boolean interrupted = Thread.interrupted();
+        try {
+            int dropped = spill.append(body, count);
+            if (dropped < 0 && !running && spill.isClosed()) {
+                log.warn("Batch of {} telemetries lost on channel {}, stopped while it was being sent", count, name);
+                metrics.recordDropped(count);
+                return;
+            }
+            if (dropped < 0) {
+                log.error("Batch of {} telemetries too large to be spilled on channel {}", count, name);
+                metrics.recordFailed();
+                return;
+            }
+            metrics.recordSpilled(count, dropped);
+        } catch (IOException e) {
+            log.error("Error spilling batch of {} telemetries on channel {}: {}", count, name, e.getMessage());
+            metrics.recordFailed();
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static byte[] serialize(Telemetry telemetry) throws IOException {
+        StringWriter writer = new StringWriter(512);
+        JsonTelemetryDataSerializer json = new JsonTelemetryDataSerializer(writer);
+        telemetry.serialize(json);
+        json.close();
+        return writer.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Seal the current batch, must hold the lock
+     *
+     * @param reason
+     * @return the sealed batch, null if there is no current batch
+     */
+    private TelemetryBatch seal(FlushReason reason) {
+        TelemetryBatch batch = current;
+        current = null;
+        if (batch != null) {
+            batch.seal(reason);
+            metrics.recordFlush(reason);
+        }
+        return batch;
+    }
+
+    @Override
+    public void flush() {
+        TelemetryBatch batch;
+        synchronized (lock) {
+            batch = seal(FlushReason.FLUSH);
+        }
+        if (batch != null) {
+            enqueue(batch);
+        }
+    }
+
+    /**
+     * Flush the current batch and wait for the sealed batches to be sent, spilling those not sent in time
+     * <p>
+     * The sender threads still running at the timeout are interrupted and their transmissions aborted, so their batches
+     * are spilled before the spill log is closed.
+     *
+     * @param timeout
+     * @param timeUnit
+     */
+    @Override
+    public void stop(long timeout, TimeUnit timeUnit) {
+        flush();
+        running = false;
+        if (!joinSenders(System.nanoTime() + timeUnit.toNanos(timeout))) {
+            senders.forEach(Thread::interrupt);
+            // Closing the http client aborts the requests in flight, which are not interruptible
+            closeHttpClient();
+            if (!joinSenders(System.nanoTime() + STOP_GRACE_NANOS)) {
+                log.warn("Sender threads of channel {} still running after stop", name);
+            }
+        }
+        if (spill != null) {
+            TelemetryBatch batch;
+            while ((batch = sealed.poll()) != null) {
+                try {
+                    spill(batch.toGzip(), batch.getCount());
+                } catch (IOException e) {
+                    metrics.recordFailed();
+                }
+            }
+            spill.close();
+        } else if (!sealed.isEmpty()) {
+            log.warn("Channel {} stopped with {} batches not sent", name, sealed.size());
+        }
+        closeHttpClient();
+    }
+
+    /**
+     * Wait for the sender threads to exit
+     *
+     * @param deadline System.nanoTime() until which to wait
+     * @return whether all sender threads exited
+     */
+    private boolean joinSenders(long deadline) {
+        try {
+            for (Thread sender : senders) {
+                sender.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return senders.stream().noneMatch(Thread::isAlive);
+    }
+
+    private void closeHttpClient() {
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            log.debug("Error closing the http client of channel {}", name, e);
+        }
+    }
+
+    /**
+     * Send the sealed batches, and the current batch once it lingered, while the circuit is closed
+     *
+     * @param replaying whether this thread replays the spill log
+     */
+    private void transmitBatches(boolean replaying) {
+        while (running || !sealed.isEmpty()) {
+            long blocked = breaker.remainingNanos();
+            if (blocked > 0) {
+                // The batches left when stopping are spilled, or reported as not sent
+                if (!running) {
+                    return;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.sleep(Math.min(blocked, nextLingerDeadlineNanos()));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                TelemetryBatch lingered = sealLingered();
+                if (lingered != null) {
+                    enqueue(lingered);
+                }
+                continue;
+            }
+
+            TelemetryBatch batch;
+            try {
+                long timeout = nextLingerDeadlineNanos();
+                if (replaying && spill != null) {
+                    timeout = Math.min(timeout, replayIntervalNanos);
+                }
+                batch = sealed.pollFirst(timeout, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            if (batch == null) {
+                batch = sealLingered();
+            }
+
+            if (batch != null) {
+                transmit(batch);
+            }
+            if (replaying && spill != null && !breaker.isOpen()) {
+                replay();
+            }
+        }
+    }
+
+    /**
+     * @return the current batch if its first telemetry waited for the linger time, sealed, null otherwise
+     */
+    private TelemetryBatch sealLingered() {
+        synchronized (lock) {
+            if (current != null && System.nanoTime() - current.getCreatedNanos() >= lingerNanos) {
+                return seal(FlushReason.LINGER);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Send the next batch of the spill log, at most one per replay interval, and not until a new batch is sent or the
+     * probe delay elapsed after a failure
+     */
+    private void replay() {
+        long now = System.nanoTime();
+        if (now - nextReplayNanos < 0) {
+            return;
+        }
+
+        SpillLog.Record record;
+        try {
+            record = spill.peek();
+        } catch (IOException e) {
+            log.error("Error reading the spill log of channel {}: {}", name, e.getMessage());
+            nextReplayNanos = now + REPLAY_PROBE_NANOS;
+            return;
+        }
+        if (record == null) {
+            return;
+        }
+
+        List<Integer> retryItems = new ArrayList<Integer>();
+        Outcome outcome = post(record.getPayload(), record.getItems(), retryItems);
+        if (outcome.isFailed()) {
+            ingestionFailing = true;
+            nextReplayNanos = System.nanoTime() + REPLAY_PROBE_NANOS;
+            return;
+        }
+        ingestionFailing = false;
+        spill.ack(record);
+        nextReplayNanos = now + replayIntervalNanos;
+        if (outcome == Outcome.SENT) {
+            metrics.recordReplayed(record.getItems() - retryItems.size());
+            if (!retryItems.isEmpty()) {
+                try {
+                    retryItems(TelemetryBatch.fromGzip(record.getPayload()), retryItems);
+                } catch (IOException e) {
+                    log.error("Error decompressing spilled batch: {}", e.getMessage());
+                    metrics.recordFailed();
+                }
+            }
+        } else {
+            metrics.recordFailed();
+        }
+    }
+
+    /**
+     * @return nanoseconds until the current batch has to be sent
+     */
+    private long nextLingerDeadlineNanos() {
+        synchronized (lock) {
+            if (current == null) {
+                return lingerNanos;
+            }
+            return Math.max(0, lingerNanos - (System.nanoTime() - current.getCreatedNanos()));
+        }
+    }
+
+    /**
+     * Send a batch to the ingestion endpoint, spilling it if it could not be sent, or retrying it once the circuit
+     * closes again without spilling. Without spilling, a batch is dropped after failing {@link #MAX_ATTEMPTS} times on
+     * a closed circuit, the failures while the circuit is open again are not counted.
+     *
+     * @param batch
+     */
+    private void transmit(TelemetryBatch batch) {
+        byte[] body;
+        try {
+            body = batch.toGzip();
+        } catch (IOException e) {
+            log.error("Error compressing batch: {}", e.getMessage());
+            metrics.recordFailed();
+            return;
+        }
+
+        List<Integer> retryItems = new ArrayList<Integer>();
+        Outcome outcome = post(body, batch.getCount(), retryItems);
+        if (outcome == Outcome.SENT) {
+            long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - batch.getCreatedNanos());
+            metrics.recordSent(batch.getCount() - retryItems.size(), batch.getBytes(), body.length, latency);
+            if (!retryItems.isEmpty()) {
+                retryItems(batch, retryItems);
+            }
+            log.debug("Sent batch of {} telemetries, {} bytes, on channel {}, flushed by {}", batch.getCount(), body.length, name, batch.getReason());
+            // Ingestion is available again, replay the spill log right away
+            if (ingestionFailing) {
+                ingestionFailing = false;
+                nextReplayNanos = System.nanoTime();
+            }
+        } else if (outcome.isFailed() && spill != null) {
+            spill(body, batch.getCount());
+            ingestionFailing = true;
+            nextReplayNanos = System.nanoTime() + REPLAY_PROBE_NANOS;
+        } else if (outcome.isFailed() && running && (outcome == Outcome.FAILED_AGAIN || batch.addAttempt() < MAX_ATTEMPTS)) {
+            // The number of batches waiting, and so the memory, is bounded by the maximum number of pending batches
+            sealed.addFirst(batch);
+        } else {
+            metrics.recordFailed();
+        }
+    }
+
+    /**
+     * Queue the items of a partially accepted batch that the endpoint asked to retry, as one more attempt of the batch
+     *
+     * @param batch
+     * @param items indexes of the items in the batch
+     */
+    private void retryItems(TelemetryBatch batch, List<Integer> items) {
+        if (batch.addAttempt() >= MAX_ATTEMPTS || !running) {
+            log.warn("Dropped {} telemetries of a partially accepted batch on channel {}", items.size(), name);
+            metrics.recordDropped(items.size());
+            return;
+        }
+        TelemetryBatch retry = batch.select(items);
+        if (retry.getCount() > 0) {
+            enqueue(retry);
+        }
+    }
+
+    /**
+     * Post a compressed batch once, and update the circuit breaker with the outcome
+     *
+     * @param body
+     * @param count
+     * @param retryItems receives the indexes of the items to retry of a partially accepted batch
+     * @return
+     */
+    private Outcome post(byte[] body, int count, List<Integer> retryItems) {
+        HttpPost post = new HttpPost(endpoint);
+        post.setHeader(HttpHeaders.CONTENT_TYPE, "application/x-json-stream");
+        post.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+        post.setEntity(new ByteArrayEntity(body));
+
+        int status = -1;
+        long retryAfterMillis = 0;
+        try (CloseableHttpResponse response = httpClient.execute(post)) {
+            status = response.getStatusLine().getStatusCode();
+            retryAfterMillis = getRetryAfterMillis(response.getFirstHeader(HttpHeaders.RETRY_AFTER));
+            if (status == 206 && response.getEntity() != null) {
+                getRetriableItems(EntityUtils.toByteArray(response.getEntity()), retryItems);
+            } else {
+                EntityUtils.consume(response.getEntity());
+            }
+        } catch (IOException e) {
+            log.warn("Error sending batch of {} telemetries on channel {}: {}", count, name, e.getMessage());
+        }
+
+        if (status == 200 || status == 206) {
+            if (status == 206) {
+                log.warn("Batch of {} telemetries partially accepted on channel {}, {} to retry", count, name, retryItems.size());
+            }
+            breaker.onSuccess();
+            return Outcome.SENT;
+        }
+        if (status != -1 && !isRetriable(status)) {
+            log.error("Batch of {} telemetries rejected on channel {} with status {}", count, name, status);
+            return Outcome.REJECTED;
+        }
+
+        if (breaker.onFailure(retryAfterMillis)) {
+            log.warn("Channel {} paused after status {}, retrying in {} ms", name, status, TimeUnit.NANOSECONDS.toMillis(breaker.remainingNanos()));
+            metrics.recordBreakerOpened();
+            return Outcome.FAILED;
+        }
+        return Outcome.FAILED_AGAIN;
+    }
+
+    /**
+     * Get the items to retry from the response of a partially accepted batch, e.g.
+     * {@code {"itemsReceived":2,"itemsAccepted":1,"errors":[{"index":1,"statusCode":429,"message":"..."}]}}
+     *
+     * @param response
+     * @param retryItems receives the indexes of the items failed with a retriable status
+     */
+    private void getRetriableItems(byte[] response, List<Integer> retryItems) {
+        try {
+            for (JsonNode error : JSON.readTree(response).path("errors")) {
+                if (error.has("index") && isRetriable(error.path("statusCode").asInt())) {
+                    retryItems.add(error.get("index").asInt());
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Error parsing the response of a partially accepted batch on channel {}: {}", name, e.getMessage());
+        }
+    }
+
+    /**
+     * Parse a Retry-After header, either a number of seconds or a date
+     *
+     * @param header
+     * @return milliseconds to wait, 0 if there is no valid header
+     */
+    private static long getRetryAfterMillis(Header header) {
+        if (header == null || header.getValue() == null) {
+            return 0;
+        }
+        String value = header.getValue().trim();
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            return date == null ? 0 : Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+    }
+
+    private static boolean isRetriable(int status) {
+        // 439 is the daily quota exceeded status of the ingestion endpoint
+        return status == 408 || status == 429 || status == 439 || status == 500 || status == 502 || status == 503 || status == 504;
+    }
+}
@@ -0,0 +1,60 @@
+package com.microsoft.nozzle.applicationinsights.channel;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker of the transmissions of one channel
+ * <p>
+ * After a failed transmission the circuit opens for an exponentially growing, jittered delay, or the Retry-After delay
+ * of the endpoint if longer. Once the delay elapsed the next transmissions probe the endpoint, the circuit closes on
+ * the first success and opens again for a longer delay on a failure.
+ */
+class CircuitBreaker {
+
+    private final long baseNanos;
+    private final long maxNanos;
+
+    // Guarded by this
+    private int failures = 0;
+    private long openUntilNanos;
+
+    CircuitBreaker(long baseMillis, long maxMillis) {
+        this.baseNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, baseMillis));
+        this.maxNanos = Math.max(baseNanos, TimeUnit.MILLISECONDS.toNanos(maxMillis));
+    }
+
+    /**
+     * @return nanoseconds until a transmission may be sent, 0 if it may be sent now
+     */
+    synchronized long remainingNanos() {
+        if (failures == 0) {
+            return 0;
+        }
+        return Math.max(0, openUntilNanos - System.nanoTime());
+    }
+
+    synchronized boolean isOpen() {
+        return remainingNanos() > 0;
+    }
+
+    synchronized void onSuccess() {
+        failures = 0;
+    }
+
+    /**
+     * Open the circuit after a failed transmission
+     *
+     * @param retryAfterMillis delay requested by the endpoint, 0 if none
+     * @return true if the circuit was closed
+     */
+    synchronized boolean onFailure(long retryAfterMillis) {
+        boolean opened = failures == 0;
+        failures++;
+        long backoff = Math.min(maxNanos, baseNanos << Math.min(failures - 1, 20));
+        // Half to all of the backoff, so the channels of the keys throttled together do not retry in step
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        openUntilNanos = System.nanoTime() + Math.max(delay, TimeUnit.MILLISECONDS.toNanos(retryAfterMillis));
+        return opened;
+    }
+}
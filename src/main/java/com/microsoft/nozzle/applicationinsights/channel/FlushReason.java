@@ -0,0 +1,27 @@
+package com.microsoft.nozzle.applicationinsights.channel;
+
+/**
+ * Why a batch of telemetries was sealed and transmitted
+ */
+public enum FlushReason {
+
+    /**
+     * The batch reached the maximum number of items
+     */
+    COUNT,
+
+    /**
+     * The batch reached the maximum size in bytes
+     */
+    BYTES,
+
+    /**
+     * The oldest item of the batch waited for the linger time
+     */
+    LINGER,
+
+    /**
+     * The channel was flushed or stopped
+     */
+    FLUSH;
+}
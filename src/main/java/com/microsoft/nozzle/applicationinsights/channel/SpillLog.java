@@ -0,0 +1,347 @@
+package com.microsoft.nozzle.applicationinsights.channel;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Size-capped log of compressed batches on disk, in memory-mapped segment files
+ * <p>
+ * Each record is the payload length, the number of telemetries, the CRC32 of the payload and the payload. The length
+ * is written last, so a record torn by a crash reads as the end of the log. A segment ends with a zero length, or with
+ * -1 when the writer moved on to the next segment. The position of the next record to replay is kept in the "ack"
+ * file, so a restarted nozzle resumes the replay after the last acknowledged record. When the log exceeds its maximum
+ * size, the oldest segment is dropped.
+ */
+@Slf4j
+class SpillLog implements Closeable {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final String ACK_FILE = "ack";
+
+    // Payload length, telemetry count and CRC32
+    private static final int HEADER_BYTES = 16;
+
+    private static final int END_OF_SEGMENT = -1;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long maxBytes;
+
+    // Sequence numbers of the segment files, oldest first
+    private final Deque<Long> segments = new ArrayDeque<Long>();
+
+    private MappedByteBuffer writeBuffer;
+    private long writeSegment;
+    private int writeOffset;
+
+    private MappedByteBuffer readBuffer;
+    private long readSegment;
+    private int readOffset;
+
+    private final MappedByteBuffer ackBuffer;
+
+    private boolean closed = false;
+
+    /**
+     * Open the log in the directory, creating it if needed
+     *
+     * @param directory
+     * @param segmentBytes size of a segment file
+     * @param maxBytes     maximum size of all segment files
+     * @throws IOException
+     */
+    SpillLog(Path directory, int segmentBytes, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = Math.max(maxBytes, 2L * segmentBytes);
+
+        Files.createDirectories(directory);
+        ackBuffer = map(directory.resolve(ACK_FILE), 12);
+        long ackSegment = ackBuffer.getLong(0);
+        int ackOffset = ackBuffer.getInt(8);
+
+        List<Long> found = new ArrayList<Long>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    found.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring unknown file {} in spill directory", file);
+                }
+            }
+        }
+        Collections.sort(found);
+        for (Long segment : found) {
+            // Segments before the acknowledged one were fully replayed
+            if (segment < ackSegment) {
+                Files.deleteIfExists(segmentPath(segment));
+            } else {
+                segments.addLast(segment);
+            }
+        }
+
+        if (segments.isEmpty()) {
+            segments.addLast(ackSegment);
+        }
+        readSegment = segments.peekFirst();
+        readOffset = readSegment == ackSegment && ackOffset >= 0 && ackOffset <= segmentBytes - 4 ? ackOffset : 0;
+        readBuffer = map(segmentPath(readSegment), segmentBytes);
+
+        writeSegment = segments.peekLast();
+        writeBuffer = writeSegment == readSegment ? readBuffer : map(segmentPath(writeSegment), segmentBytes);
+        writeOffset = recover(writeBuffer, writeSegment == readSegment ? readOffset : 0);
+        persistAck();
+    }
+
+    /**
+     * Find the end of the records of the last segment, discarding a record torn by a crash
+     *
+     * @param buffer
+     * @param offset
+     * @return the offset the next record is written at
+     */
+    private int recover(MappedByteBuffer buffer, int offset) throws IOException {
+        while (offset + HEADER_BYTES <= segmentBytes - 4) {
+            int length = buffer.getInt(offset);
+            if (length == 0) {
+                return offset;
+            }
+            if (length == END_OF_SEGMENT) {
+                roll();
+                return writeOffset;
+            }
+            Record record = readRecord(buffer, offset);
+            if (record == null) {
+                log.warn("Discarding the torn end of spill segment {}", segmentPath(writeSegment));
+                for (int i = offset; i < segmentBytes; i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                return offset;
+            }
+            offset += record.size;
+        }
+        return offset;
+    }
+
+    /**
+     * Append a payload to the log
+     *
+     * @param payload
+     * @param items   number of telemetries in the payload
+     * @return the number of telemetries dropped to keep the log under its maximum size, -1 if the payload was not
+     * appended because it does not fit in a segment or the log is closed
+     * @throws IOException
+     */
+    synchronized int append(byte[] payload, int items) throws IOException {
+        int size = HEADER_BYTES + payload.length;
+        if (closed || size + 4 > segmentBytes) {
+            return -1;
+        }
+
+        int dropped = 0;
+        if (writeOffset + size + 4 > segmentBytes) {
+            writeBuffer.putInt(writeOffset, END_OF_SEGMENT);
+            roll();
+            while ((long) segments.size() * segmentBytes > maxBytes) {
+                dropped += dropOldest();
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buffer = writeBuffer.duplicate();
+        buffer.position(writeOffset + HEADER_BYTES);
+        buffer.put(payload);
+        writeBuffer.putInt(writeOffset + 4, items);
+        writeBuffer.putLong(writeOffset + 8, crc.getValue());
+        writeBuffer.putInt(writeOffset, payload.length);
+        writeOffset += size;
+        return dropped;
+    }
+
+    private void roll() throws IOException {
+        writeSegment++;
+        writeOffset = 0;
+        writeBuffer = map(segmentPath(writeSegment), segmentBytes);
+        segments.addLast(writeSegment);
+    }
+
+    /**
+     * Drop the oldest segment, which is the one being replayed
+     *
+     * @return the number of telemetries not replayed
+     */
+    private int dropOldest() throws IOException {
+        int dropped = 0;
+        Record record;
+        while ((record = readRecord(readBuffer, readOffset)) != null) {
+            dropped += record.items;
+            readOffset += record.size;
+        }
+        log.warn("Spill log {} is full, dropping {} telemetries", directory, dropped);
+        nextSegment();
+        return dropped;
+    }
+
+    /**
+     * Get the next record to replay, without removing it
+     *
+     * @return null if there is no record to replay
+     * @throws IOException
+     */
+    synchronized Record peek() throws IOException {
+        while (!closed) {
+            if (readSegment == writeSegment && readOffset >= writeOffset) {
+                return null;
+            }
+            int length = readBuffer.getInt(readOffset);
+            if (length == 0 || length == END_OF_SEGMENT) {
+                if (readSegment == writeSegment) {
+                    return null;
+                }
+                nextSegment();
+                continue;
+            }
+
+            Record record = readRecord(readBuffer, readOffset);
+            if (record != null) {
+                return record;
+            }
+            log.warn("Skipping corrupt records of spill segment {}", segmentPath(readSegment));
+            if (readSegment == writeSegment) {
+                readOffset = writeOffset;
+                persistAck();
+                return null;
+            }
+            nextSegment();
+        }
+        return null;
+    }
+
+    /**
+     * Remove the record returned by peek, once replayed
+     *
+     * @param record
+     */
+    synchronized void ack(Record record) {
+        if (closed || record.segment != readSegment || record.offset != readOffset) {
+            return;
+        }
+        readOffset += record.size;
+        persistAck();
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    synchronized boolean isEmpty() {
+        return readSegment == writeSegment && readOffset >= writeOffset;
+    }
+
+    private void nextSegment() throws IOException {
+        Files.deleteIfExists(segmentPath(segments.pollFirst()));
+        readSegment = segments.peekFirst();
+        readOffset = 0;
+        readBuffer = readSegment == writeSegment ? writeBuffer : map(segmentPath(readSegment), segmentBytes);
+        persistAck();
+    }
+
+    private Record readRecord(MappedByteBuffer buffer, int offset) {
+        if (offset + HEADER_BYTES > segmentBytes) {
+            return null;
+        }
+        int length = buffer.getInt(offset);
+        if (length <= 0 || offset + HEADER_BYTES + length > segmentBytes) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset + HEADER_BYTES);
+        source.get(payload);
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if (crc.getValue() != buffer.getLong(offset + 8)) {
+            return null;
+        }
+        return new Record(readSegment, offset, payload, buffer.getInt(offset + 4));
+    }
+
+    private void persistAck() {
+        ackBuffer.putLong(0, readSegment);
+        ackBuffer.putInt(8, readOffset);
+    }
+
+    private Path segmentPath(long segment) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private static MappedByteBuffer map(Path path, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Write the mapped pages to disk
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writeBuffer.force();
+        if (readBuffer != writeBuffer) {
+            readBuffer.force();
+        }
+        ackBuffer.force();
+    }
+
+    /**
+     * Compressed batch read from the log
+     */
+    static final class Record {
+        private final long segment;
+        private final int offset;
+        private final byte[] payload;
+        private final int items;
+        private final int size;
+
+        private Record(long segment, int offset, byte[] payload, int items) {
+            this.segment = segment;
+            this.offset = offset;
+            this.payload = payload;
+            this.items = items;
+            this.size = HEADER_BYTES + payload.length;
+        }
+
+        byte[] getPayload() {
+            return payload;
+        }
+
+        int getItems() {
+            return items;
+        }
+    }
+}
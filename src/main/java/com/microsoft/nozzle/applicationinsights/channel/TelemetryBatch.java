@@ -0,0 +1,129 @@
+package com.microsoft.nozzle.applicationinsights.channel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serialized telemetries in the newline delimited JSON format of the ingestion endpoint
+ */
+class TelemetryBatch {
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(16 * 1024);
+
+    private final long createdNanos = System.nanoTime();
+
+    private int count;
+
+    private FlushReason reason;
+
+    private int attempts;
+
+    void add(byte[] item) {
+        if (count > 0) {
+            buffer.write('\n');
+        }
+        buffer.write(item, 0, item.length);
+        count++;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    int getBytes() {
+        return buffer.size();
+    }
+
+    /**
+     * @return System.nanoTime() when the first item was added
+     */
+    long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    FlushReason getReason() {
+        return reason;
+    }
+
+    void seal(FlushReason reason) {
+        this.reason = reason;
+    }
+
+    /**
+     * Count a failed transmission of the batch
+     *
+     * @return the number of failed transmissions
+     */
+    int addAttempt() {
+        return ++attempts;
+    }
+
+    /**
+     * Copy some items of the batch into a new batch, which keeps the number of attempts of the batch
+     *
+     * @param indexes indexes of the items, in the order they were added
+     * @return
+     */
+    TelemetryBatch select(Collection<Integer> indexes) {
+        Set<Integer> selected = new HashSet<Integer>(indexes);
+        TelemetryBatch batch = new TelemetryBatch();
+        batch.reason = reason;
+        batch.attempts = attempts;
+        byte[] items = buffer.toByteArray();
+        int start = 0;
+        int index = 0;
+        for (int i = 0; i <= items.length; i++) {
+            // Serialized telemetries have no raw newline, those are escaped in JSON strings
+            if (i == items.length || items[i] == '\n') {
+                if (selected.contains(index)) {
+                    batch.add(Arrays.copyOfRange(items, start, i));
+                }
+                start = i + 1;
+                index++;
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Decompress a batch, e.g. a spilled one
+     *
+     * @param gzip
+     * @return
+     * @throws IOException
+     */
+    static TelemetryBatch fromGzip(byte[] gzip) throws IOException {
+        TelemetryBatch batch = new TelemetryBatch();
+        batch.seal(FlushReason.FLUSH);
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip))) {
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = in.read(chunk)) > 0) {
+                batch.buffer.write(chunk, 0, read);
+            }
+        }
+        batch.count = batch.buffer.size() == 0 ? 0 : 1;
+        byte[] items = batch.buffer.toByteArray();
+        for (byte b : items) {
+            if (b == '\n') {
+                batch.count++;
+            }
+        }
+        return batch;
+    }
+
+    byte[] toGzip() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(buffer.size() / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            buffer.writeTo(gzip);
+        }
+        return compressed.toByteArray();
+    }
+}
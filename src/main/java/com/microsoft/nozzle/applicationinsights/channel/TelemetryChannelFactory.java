@@ -0,0 +1,12 @@
+package com.microsoft.nozzle.applicationinsights.channel;
+
+import com.microsoft.applicationinsights.channel.TelemetryChannel;
+
+/**
+ * Creates the transmission channel of an instrumentation key
+ */
+@FunctionalInterface
+public interface TelemetryChannelFactory {
+
+    TelemetryChannel create(String instrumentationKey);
+}
@@ -0,0 +1,97 @@
+package com.microsoft.nozzle.applicationinsights.channel;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Batch sizes, flush reasons and latencies of all transmission channels
+ */
+public class TransmissionMetrics implements PublicMetrics {
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder items = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder failedBatches = new LongAdder();
+    private final LongAdder spilledItems = new LongAdder();
+    private final LongAdder replayedItems = new LongAdder();
+    private final LongAdder spillDroppedItems = new LongAdder();
+    private final LongAdder droppedItems = new LongAdder();
+    private final LongAdder breakerOpenings = new LongAdder();
+    private final LongAdder[] flushReasons = new LongAdder[FlushReason.values().length];
+
+    // From the first telemetry of a batch being sent to the channel to the batch being accepted by the endpoint
+    private final LongAdder latencyMillis = new LongAdder();
+    private final LongAccumulator maxLatencyMillis = new LongAccumulator(Math::max, 0);
+
+    public TransmissionMetrics() {
+        for (int i = 0; i < flushReasons.length; i++) {
+            flushReasons[i] = new LongAdder();
+        }
+    }
+
+    void recordFlush(FlushReason reason) {
+        flushReasons[reason.ordinal()].increment();
+    }
+
+    void recordSent(int itemCount, int byteCount, int compressedByteCount, long latency) {
+        batches.increment();
+        items.add(itemCount);
+        bytes.add(byteCount);
+        compressedBytes.add(compressedByteCount);
+        latencyMillis.add(latency);
+        maxLatencyMillis.accumulate(latency);
+    }
+
+    void recordFailed() {
+        failedBatches.increment();
+    }
+
+    void recordSpilled(int itemCount, int droppedItemCount) {
+        spilledItems.add(itemCount);
+        spillDroppedItems.add(droppedItemCount);
+    }
+
+    void recordReplayed(int itemCount) {
+        replayedItems.add(itemCount);
+    }
+
+    void recordDropped(int itemCount) {
+        droppedItems.add(itemCount);
+    }
+
+    void recordBreakerOpened() {
+        breakerOpenings.increment();
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<Metric<?>>();
+        long batchCount = batches.sum();
+        metrics.add(new Metric<Long>("nozzle.transmission.batches", batchCount));
+        metrics.add(new Metric<Long>("nozzle.transmission.items", items.sum()));
+        metrics.add(new Metric<Long>("nozzle.transmission.bytes", bytes.sum()));
+        metrics.add(new Metric<Long>("nozzle.transmission.compressed.bytes", compressedBytes.sum()));
+        metrics.add(new Metric<Long>("nozzle.transmission.failed", failedBatches.sum()));
+        metrics.add(new Metric<Long>("nozzle.transmission.spilled.items", spilledItems.sum()));
+        metrics.add(new Metric<Long>("nozzle.transmission.replayed.items", replayedItems.sum()));
+        metrics.add(new Metric<Long>("nozzle.transmission.spill.dropped.items", spillDroppedItems.sum()));
+        metrics.add(new Metric<Long>("nozzle.transmission.dropped.items", droppedItems.sum()));
+        metrics.add(new Metric<Long>("nozzle.transmission.breaker.openings", breakerOpenings.sum()));
+        for (FlushReason reason : FlushReason.values()) {
+            metrics.add(new Metric<Long>("nozzle.transmission.flush." + reason.name().toLowerCase(), flushReasons[reason.ordinal()].sum()));
+        }
+        if (batchCount > 0) {
+            metrics.add(new Metric<Double>("nozzle.transmission.batch.items.avg", (double) items.sum() / batchCount));
+            metrics.add(new Metric<Double>("nozzle.transmission.latency.avg.millis", (double) latencyMillis.sum() / batchCount));
+        }
+        metrics.add(new Metric<Long>("nozzle.transmission.latency.max.millis", maxLatencyMillis.get()));
+        return metrics;
+    }
+}
@@ -1,7 +1,10 @@
 package com.microsoft.nozzle.applicationinsights.config;
 
+import com.microsoft.nozzle.applicationinsights.cache.AppMetadata;
 import lombok.Data;
 
+import java.util.regex.Pattern;
+
 @Data
 public class ApplicationConfig {
 
@@ -14,4 +17,101 @@ public class ApplicationConfig {
      * The application id
      */
     private String applicationId;
+
+    /**
+     * Name pattern of the organizations whose apps are monitored when no application id is set, "*" matching any
+     * characters
+     */
+    private String organizationName;
+
+    /**
+     * Name pattern of the spaces whose apps are monitored when no application id is set
+     */
+    private String spaceName;
+
+    /**
+     * Name pattern of the apps monitored when no application id is set
+     */
+    private String applicationName;
+
+    /**
+     * "telemetry" to send each request as a Request telemetry, "aggregate" to send request count, failure and
+     * duration metrics per method, route, status class and instance
+     */
+    private String requestMode = "telemetry";
+
+    /**
+     * Percentage of the successful requests also sent as Request telemetries in the aggregate mode
+     */
+    private int requestSamplePercent = 0;
+
+    /**
+     * Whether the failed requests are also sent as Request telemetries in the aggregate mode
+     */
+    private boolean keepFailedRequests = true;
+
+    /**
+     * "text" to send each log line as the message of a Trace telemetry, "json" to lift the fields of the JSON log lines
+     * into the properties and severity of the trace
+     */
+    private String logFormat = "text";
+
+    public boolean isAggregatingRequests() {
+        return "aggregate".equalsIgnoreCase(requestMode);
+    }
+
+    public boolean isJsonLogs() {
+        return "json".equalsIgnoreCase(logFormat);
+    }
+
+    /**
+     * Whether the config selects apps by organization, space or app name instead of by application id
+     *
+     * @return
+     */
+    public boolean isScoped() {
+        return applicationId == null && (organizationName != null || spaceName != null || applicationName != null);
+    }
+
+    /**
+     * Whether an app is selected by the organization, space and app name patterns, all set patterns must match
+     *
+     * @param metadata
+     * @return
+     */
+    public boolean matches(AppMetadata metadata) {
+        return isScoped()
+                && matches(organizationName, metadata.getOrganizationName())
+                && matches(spaceName, metadata.getSpaceName())
+                && matches(applicationName, metadata.getApplicationName());
+    }
+
+    /**
+     * @return the organization, space and app name patterns, e.g. "org=prod space=* app=orders-*"
+     */
+    public String getScope() {
+        return "org=" + (organizationName == null ? "*" : organizationName)
+                + " space=" + (spaceName == null ? "*" : spaceName)
+                + " app=" + (applicationName == null ? "*" : applicationName);
+    }
+
+    private static boolean matches(String pattern, String name) {
+        if (pattern == null) {
+            return true;
+        }
+        if (name == null) {
+            return false;
+        }
+        StringBuilder regex = new StringBuilder();
+        String[] literals = pattern.split("\\*", -1);
+        for (int i = 0; i < literals.length; i++) {
+            if (i > 0) {
+                regex.append(".*");
+            }
+            if (!literals[i].isEmpty()) {
+                regex.append(Pattern.quote(literals[i]));
+            }
+        }
+        return Pattern.matches(regex.toString(), name);
+    }
 }
@@ -1,8 +1,14 @@
 package com.microsoft.nozzle.applicationinsights.config;
 
 import com.microsoft.nozzle.applicationinsights.cache.AppDataCache;
+import com.microsoft.nozzle.applicationinsights.channel.BatchingTelemetryChannel;
+import com.microsoft.nozzle.applicationinsights.channel.TelemetryChannelFactory;
+import com.microsoft.nozzle.applicationinsights.channel.TransmissionMetrics;
+import com.microsoft.nozzle.applicationinsights.nozzle.AppSenderResolver;
+import com.microsoft.nozzle.applicationinsights.nozzle.EnvelopeDispatcher;
 import com.microsoft.nozzle.applicationinsights.nozzle.FirehoseConsumer;
 import com.microsoft.nozzle.applicationinsights.nozzle.FirehoseEventRouter;
+import com.microsoft.nozzle.applicationinsights.nozzle.NozzleTelemetryReporter;
 import lombok.extern.slf4j.Slf4j;
 import org.cloudfoundry.client.CloudFoundryClient;
 import org.cloudfoundry.doppler.DopplerClient;
@@ -12,11 +18,14 @@ import org.cloudfoundry.reactor.client.ReactorCloudFoundryClient;
 import org.cloudfoundry.reactor.doppler.ReactorDopplerClient;
 import org.cloudfoundry.reactor.tokenprovider.ClientCredentialsGrantTokenProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.retry.annotation.Retryable;
 
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -60,14 +69,61 @@ public class FirehoseConfig {
 
     @Bean
     @Autowired
-    FirehoseConsumer firehoseConsumer(DopplerClient dopplerClient, NozzleProperties properties, FirehoseEventRouter router) {
-        return new FirehoseConsumer(dopplerClient, properties, router);
+    FirehoseConsumer firehoseConsumer(DopplerClient dopplerClient, NozzleProperties properties, EnvelopeDispatcher dispatcher,
+                                      AppDataCache appDataCache, RoutingConfigSource routingConfigSource, AppSenderResolver senderResolver) {
+        return new FirehoseConsumer(dopplerClient, properties, dispatcher, appDataCache, routingConfigSource, senderResolver);
     }
 
     @Bean
     @Autowired
-    AppDataCache appDataCache(CloudFoundryClient cfClient) {
-        return new AppDataCache(cfClient);
+    AppSenderResolver appSenderResolver(AppDataCache appDataCache) {
+        return new AppSenderResolver(appDataCache);
+    }
+
+    @Bean
+    @Autowired
+    RoutingConfigSource routingConfigSource(NozzleProperties properties) {
+        return new RoutingConfigSource(properties);
+    }
+
+    @Bean
+    @Autowired
+    RoutingEndpoint routingEndpoint(RoutingConfigSource routingConfigSource,
+                                    @Value("${security.user.password:}") String securityPassword) {
+        // The password Spring Boot generates otherwise may be logged, so the routing is only replaced with an explicit one
+        if (securityPassword.isEmpty()) {
+            log.warn("SECURITY_USER_PASSWORD not set, the routing config cannot be posted to the /routing endpoint");
+        }
+        return new RoutingEndpoint(routingConfigSource, !securityPassword.isEmpty());
+    }
+
+    @Bean
+    @Autowired
+    EnvelopeDispatcher envelopeDispatcher(FirehoseEventRouter router, NozzleProperties properties) {
+        return new EnvelopeDispatcher(router, properties);
+    }
+
+    @Bean
+    @Autowired
+    AppDataCache appDataCache(CloudFoundryClient cfClient, NozzleProperties properties) {
+        return new AppDataCache(cfClient, properties);
+    }
+
+    @Bean
+    TransmissionMetrics transmissionMetrics() {
+        return new TransmissionMetrics();
+    }
+
+    @Bean
+    @Autowired
+    TelemetryChannelFactory telemetryChannelFactory(NozzleProperties properties, TransmissionMetrics transmissionMetrics) {
+        return instrumentationKey -> new BatchingTelemetryChannel(instrumentationKey, properties, transmissionMetrics);
+    }
+
+    @Bean
+    @Autowired
+    NozzleTelemetryReporter nozzleTelemetryReporter(NozzleProperties properties, TelemetryChannelFactory telemetryChannelFactory, List<PublicMetrics> publicMetrics) {
+        return new NozzleTelemetryReporter(properties, telemetryChannelFactory, publicMetrics);
     }
 
     /**
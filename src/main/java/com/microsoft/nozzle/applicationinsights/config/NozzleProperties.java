@@ -4,7 +4,11 @@ import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import javax.annotation.PostConstruct;
@@ -17,6 +21,8 @@ public class NozzleProperties {
     public void postConstruct() {
         setIgnoredTelemetries();
         setApplicationConfigs();
+        setSheddingThresholds();
+        setHistogramMetricNames();
     }
 
     /**
@@ -24,6 +30,12 @@ public class NozzleProperties {
      */
     private String instrumentationKey;
 
+    /**
+     * The instrumentation key of the Application Insights resource the metrics of the nozzle itself are sent to, not
+     * sent if not set
+     */
+    private String nozzleInstrumentationKey;
+
     /**
      * The Cloud Controller host. Should be in the form "api.{{SYSTEM_DOMAIN}}"
      */
@@ -55,22 +67,265 @@ public class NozzleProperties {
     private String telemetryIgnoreList;
 
     /**
-     * String of a list of APPLICATION_ID and INSTRUMENTATION_KEY, it's recommended that each application use a separate Application Insights resource
+     * String of a list of APPLICATION_ID, or ORGANIZATION_NAME, SPACE_NAME and APPLICATION_NAME patterns, and
+     * INSTRUMENTATION_KEY, it's recommended that each application use a separate Application Insights resource
      */
     private String applicationConfig;
 
+    /**
+     * Properties file with APPLICATION_CONFIG and TELEMETRY_IGNORE_LIST, reloaded when modified, not watched if not set
+     */
+    private String routingConfigFile;
+
+    /**
+     * The Application Insights endpoint telemetries are sent to
+     */
+    private String ingestionEndpoint = "https://dc.services.visualstudio.com/v2/track";
+
+    /**
+     * The maximum number of telemetries sent in one request
+     */
+    private int batchMaxItems = 500;
+
+    /**
+     * The maximum uncompressed size in bytes of the telemetries sent in one request
+     */
+    private int batchMaxBytes = 1024 * 1024;
+
+    /**
+     * The maximum milliseconds a telemetry waits for its batch to fill up before being sent
+     */
+    private long batchLingerMillis = 5000;
+
+    /**
+     * The number of threads sending the batches of an instrumentation key
+     */
+    private int channelSendThreads = 2;
+
+    /**
+     * The maximum number of batches of an instrumentation key waiting to be sent when not spilling, the oldest are
+     * dropped beyond
+     */
+    private int channelMaxPendingBatches = 100;
+
+    /**
+     * The maximum milliseconds an instrumentation key is paused after failed transmissions, unless its Retry-After is
+     * longer
+     */
+    private long channelBackoffMaxMillis = 300000;
+
+    /**
+     * Directory of the spill logs of telemetries not sent during ingestion outages, one sub directory per
+     * instrumentation key, no spilling if not set
+     */
+    private String spillDirectory;
+
+    /**
+     * The maximum size in bytes of the spill log of an instrumentation key, the oldest telemetries are dropped beyond
+     */
+    private long spillMaxBytes = 1024L * 1024 * 1024;
+
+    /**
+     * The size in bytes of a spill log segment file
+     */
+    private int spillSegmentBytes = 64 * 1024 * 1024;
+
+    /**
+     * The number of batches waiting to be sent above which new batches are spilled
+     */
+    private int spillThresholdBatches = 20;
+
+    /**
+     * The maximum number of spilled batches replayed per second once ingestion recovered
+     */
+    private int spillReplayBatchesPerSecond = 5;
+
+    /**
+     * Comma separated route templates of the request names, "/orders/{id}" for all apps or "app-guid:/orders/{id}" for
+     * one app, where "*" and "{name}" segments match any path segment
+     */
+    private String requestRouteTemplates;
+
+    /**
+     * The maximum number of request paths, of all apps, whose normalized name is cached
+     */
+    private int requestNameCacheSize = 100000;
+
+    /**
+     * The maximum number of apps whose distinct request names are counted, the least recently seen are forgotten
+     */
+    private int requestNameMaxApps = 10000;
+
+    /**
+     * The maximum number of distinct request names of an app, further names are reported as "/{other}"
+     */
+    private int requestNameLimit = 1000;
+
+    /**
+     * Comma separated names of the metrics aggregated into histograms, sent with their P50, P90 and P99,
+     * e.g. "Memory Bytes (MB),Request Duration (ms)"
+     */
+    private String histogramMetrics;
+
+    /**
+     * Rules classifying the API, STG and SSH log lines into app events, one per line as
+     * "SOURCE|Event Name {key=value}|literal" or "SOURCE|Event Name|re:regex", the default rules if not set
+     */
+    private String appEventRules;
+
+    /**
+     * Rules extracting metrics from the application log lines, one per line as
+     * "app-guid|group=Metric Name, group=Metric Name|regex", "*" selecting all apps, not extracted if not set
+     */
+    private String logMetricRules;
+
+    /**
+     * Whether the log lines metrics are extracted from are also sent as traces
+     */
+    private boolean logMetricKeepLines = false;
+
+    /**
+     * The maximum number of envelopes waiting to be routed
+     */
+    private int dispatchQueueCapacity = 100000;
+
+    /**
+     * The maximum estimated size in bytes of the envelopes waiting to be routed
+     */
+    private long dispatchQueueMaxBytes = 128L * 1024 * 1024;
+
+    /**
+     * The number of threads routing envelopes
+     */
+    private int dispatchThreads = 30;
+
+    /**
+     * "pool" to route envelopes with dispatchThreads threads sharing one queue, "ordered" to route the envelopes of an
+     * app in order, in one of dispatchLanes single threaded lanes
+     */
+    private String dispatchMode = "pool";
+
+    /**
+     * The number of lanes in the ordered dispatch mode, the number of available processors if not positive
+     */
+    private int dispatchLanes = 0;
+
+    /**
+     * What the ordered dispatch mode keeps in order: "app" for all envelopes of an application, "instance" for the
+     * envelopes of each application instance
+     */
+    private String dispatchOrderKey = "app";
+
+    /**
+     * The queue fill percentage above which envelopes of a telemetry type are dropped. Comma separated list of type:percentage,
+     * e.g. "Trace:50,HttpRequest:80". Types not listed are only dropped when the queue is full. Stderr traces are always kept
+     * until the queue is full.
+     */
+    private String sheddingPolicy = "Trace:50,HttpRequest:80";
+
+    /**
+     * The maximum number of trace lines per second of an app, 0 for no limit
+     */
+    private double traceRateLimit = 0;
+
+    /**
+     * The number of trace lines an app can log at once above its rate limit, the rate limit if not positive
+     */
+    private int traceRateBurst = 0;
+
+    /**
+     * The maximum number of trace lines per second of an app instance, 0 for no limit
+     */
+    private double traceInstanceRateLimit = 0;
+
+    /**
+     * The number of trace lines per second of an app above which its lines are sampled, 0 for no sampling
+     */
+    private double traceSamplingTarget = 0;
+
+    /**
+     * The number of stderr lines per second of an app kept regardless of the sampling and rate limits
+     */
+    private double traceStderrFloor = 10;
+
+    /**
+     * Milliseconds during which the continuation lines of a trace line are merged into it, 0 for no merging
+     */
+    private long traceCoalesceWindowMillis = 0;
+
+    /**
+     * The maximum length in characters of a merged trace
+     */
+    private int traceCoalesceMaxChars = 32768;
+
+    /**
+     * Pattern matching the beginning of a line continuing the previous one: indented lines, stack frames, causes and
+     * elided frames of Java and .NET stack traces
+     */
+    private String traceContinuationPattern = "\\s|at |Caused by:|Suppressed:|\\.\\.\\.|--- ";
+
+    /**
+     * The maximum number of fields of a JSON log line lifted into the properties of its trace
+     */
+    private int traceJsonMaxFields = 20;
+
+    /**
+     * The maximum length in characters of the names and values of the fields lifted from a JSON log line
+     */
+    private int traceJsonMaxChars = 4096;
+
+    /**
+     * Seconds during which an application not found in the Cloud Controller is not looked up again
+     */
+    private long appCacheMissTtl = 60;
+
+    /**
+     * The maximum number of pages of apps, spaces or organizations requested concurrently when warming up the app data cache
+     */
+    private int appCacheWarmupConcurrency = 4;
+
+    /**
+     * Seconds to wait for the app data cache to warm up before connecting to the Firehose
+     */
+    private long appCacheWarmupTimeout = 120;
+
+    /**
+     * File the app data cache is periodically written to and loaded from at startup, no snapshot if not set
+     */
+    private String appCacheSnapshotPath;
+
+    /**
+     * Seconds after which a snapshot of the app data cache is too old to be loaded
+     */
+    private long appCacheSnapshotMaxAge = 86400;
+
     private final List<TelemetryType> ignoredTelemetries = new ArrayList<TelemetryType>();
 
+    private final Map<TelemetryType, Integer> sheddingThresholds = new EnumMap<TelemetryType, Integer>(TelemetryType.class);
+
     private final List<ApplicationConfig> applicationConfigs = new ArrayList<ApplicationConfig>();
 
+    private final Set<String> histogramMetricNames = new HashSet<String>();
+
     /**
      * Parse the value of telemetryTypes
      */
     public void setIgnoredTelemetries() {
         ignoredTelemetries.clear();
+        ignoredTelemetries.addAll(parseIgnoredTelemetries(telemetryIgnoreList));
+    }
+
+    /**
+     * Parse a telemetry ignore list, e.g. "HttpRequest,Metric"
+     *
+     * @param telemetryIgnoreList
+     * @return
+     */
+    public static List<TelemetryType> parseIgnoredTelemetries(String telemetryIgnoreList) {
+        List<TelemetryType> ignoredTelemetries = new ArrayList<TelemetryType>();
 
         if (telemetryIgnoreList == null || telemetryIgnoreList.isEmpty()) {
-            return;
+            return ignoredTelemetries;
         }
 
         String lower = telemetryIgnoreList.toLowerCase();
@@ -87,6 +342,7 @@ public class NozzleProperties {
         if (lower.contains("trace")) {
             ignoredTelemetries.add(TelemetryType.TRACE);
         }
+        return ignoredTelemetries;
     }
 
     /**
@@ -94,12 +350,25 @@ public class NozzleProperties {
      */
     public void setApplicationConfigs() {
         applicationConfigs.clear();
+        applicationConfigs.addAll(parseApplicationConfigs(applicationConfig));
+    }
+
+    /**
+     * Parse a list of application configs, e.g. "[map[APPLICATION_ID:guid INSTRUMENTATION_KEY:ikey]]", or
+     * "[map[ORGANIZATION_NAME:prod SPACE_NAME:orders-* INSTRUMENTATION_KEY:ikey]]" for the apps of matching spaces
+     *
+     * @param applicationConfig
+     * @return
+     * @throws NumberFormatException if REQUEST_SAMPLE_PERCENT is not a number
+     */
+    public static List<ApplicationConfig> parseApplicationConfigs(String applicationConfig) {
+        List<ApplicationConfig> applicationConfigs = new ArrayList<ApplicationConfig>();
 
         if (applicationConfig == null || applicationConfig.isEmpty()) {
-            return;
+            return applicationConfigs;
         }
 
-        Pattern pattern = Pattern.compile("map\\[((APPLICATION_ID|INSTRUMENTATION_KEY):[\\w-]*\\s*)*");
+        Pattern pattern = Pattern.compile("map\\[(([A-Z_]+):[\\w.*-]*\\s*)*");
         Matcher matcher = pattern.matcher(applicationConfig);
 
         while (matcher.find()) {
@@ -113,13 +382,69 @@ public class NozzleProperties {
             while (m.find()) {
                 if (m.group(2).contains("APPLICATION_ID")) {
                     appConfig.setApplicationId(m.group(3));
+                } else if (m.group(2).contains("ORGANIZATION_NAME")) {
+                    appConfig.setOrganizationName(m.group(3));
+                } else if (m.group(2).contains("SPACE_NAME")) {
+                    appConfig.setSpaceName(m.group(3));
+                } else if (m.group(2).contains("APPLICATION_NAME")) {
+                    appConfig.setApplicationName(m.group(3));
                 } else if (m.group(2).contains("INSTRUMENTATION_KEY")) {
                     appConfig.setInstrumentationKey(m.group(3));
+                } else if (m.group(2).contains("REQUEST_MODE")) {
+                    appConfig.setRequestMode(m.group(3));
+                } else if (m.group(2).contains("REQUEST_SAMPLE_PERCENT")) {
+                    appConfig.setRequestSamplePercent(Integer.parseInt(m.group(3)));
+                } else if (m.group(2).contains("KEEP_FAILED_REQUESTS")) {
+                    appConfig.setKeepFailedRequests(Boolean.parseBoolean(m.group(3)));
+                } else if (m.group(2).contains("LOG_FORMAT")) {
+                    appConfig.setLogFormat(m.group(3));
                 }
             }
 
             applicationConfigs.add(appConfig);
 
         }
+        return applicationConfigs;
+    }
+
+    /**
+     * Parse the value of histogramMetrics
+     */
+    public void setHistogramMetricNames() {
+        histogramMetricNames.clear();
+
+        if (histogramMetrics == null || histogramMetrics.isEmpty()) {
+            return;
+        }
+
+        for (String name : histogramMetrics.split(",")) {
+            if (!name.trim().isEmpty()) {
+                histogramMetricNames.add(name.trim());
+            }
+        }
+    }
+
+    /**
+     * Parse the value of sheddingPolicy
+     */
+    public void setSheddingThresholds() {
+        sheddingThresholds.clear();
+        for (TelemetryType type : TelemetryType.values()) {
+            sheddingThresholds.put(type, 100);
+        }
+
+        if (sheddingPolicy == null || sheddingPolicy.isEmpty()) {
+            return;
+        }
+
+        Pattern pattern = Pattern.compile("(\\w+)\\s*:\\s*(\\d+)");
+        Matcher matcher = pattern.matcher(sheddingPolicy);
+
+        while (matcher.find()) {
+            TelemetryType type = TelemetryType.fromName(matcher.group(1));
+            if (type != null) {
+                sheddingThresholds.put(type, Math.min(100, Integer.parseInt(matcher.group(2))));
+            }
+        }
     }
 }
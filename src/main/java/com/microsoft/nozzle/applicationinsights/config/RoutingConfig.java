@@ -0,0 +1,52 @@
+package com.microsoft.nozzle.applicationinsights.config;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of the monitored applications and the ignored telemetry types, replaced as a whole when reloaded
+ */
+public final class RoutingConfig {
+
+    private final List<ApplicationConfig> applicationConfigs;
+
+    private final Set<String> applicationIds;
+
+    private final Set<TelemetryType> ignoredTelemetries;
+
+    public RoutingConfig(List<ApplicationConfig> applicationConfigs, Collection<TelemetryType> ignoredTelemetries) {
+        this.applicationConfigs = Collections.unmodifiableList(new ArrayList<ApplicationConfig>(applicationConfigs));
+
+        Set<String> ids = new HashSet<String>();
+        for (ApplicationConfig config : applicationConfigs) {
+            if (config.getApplicationId() != null) {
+                ids.add(config.getApplicationId());
+            }
+        }
+        this.applicationIds = Collections.unmodifiableSet(ids);
+
+        Set<TelemetryType> ignored = EnumSet.noneOf(TelemetryType.class);
+        ignored.addAll(ignoredTelemetries);
+        this.ignoredTelemetries = Collections.unmodifiableSet(ignored);
+    }
+
+    public List<ApplicationConfig> getApplicationConfigs() {
+        return applicationConfigs;
+    }
+
+    /**
+     * @return the ids of the apps selected by id, not those selected by organization, space or app name
+     */
+    public Set<String> getApplicationIds() {
+        return applicationIds;
+    }
+
+    public Set<TelemetryType> getIgnoredTelemetries() {
+        return ignoredTelemetries;
+    }
+}
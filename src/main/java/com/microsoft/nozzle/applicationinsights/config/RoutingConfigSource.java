@@ -0,0 +1,108 @@
+package com.microsoft.nozzle.applicationinsights.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Holds the current routing config and passes every new one to the listeners, so the monitored applications and the
+ * ignored telemetry types change without restarting the nozzle
+ * <p>
+ * The config starts from APPLICATION_CONFIG and TELEMETRY_IGNORE_LIST, and is replaced when the routing config file is
+ * modified or the /routing actuator endpoint is posted to.
+ */
+@Slf4j
+public class RoutingConfigSource {
+
+    private static final String APPLICATION_CONFIG = "APPLICATION_CONFIG";
+
+    private static final String TELEMETRY_IGNORE_LIST = "TELEMETRY_IGNORE_LIST";
+
+    private final Path file;
+    private final List<Consumer<RoutingConfig>> listeners = new CopyOnWriteArrayList<Consumer<RoutingConfig>>();
+    private volatile RoutingConfig current;
+
+    // Modification time of the file when last loaded, guarded by this
+    private long fileModified = 0;
+
+    public RoutingConfigSource(NozzleProperties properties) {
+        this.file = properties.getRoutingConfigFile() == null ? null : Paths.get(properties.getRoutingConfigFile());
+        this.current = new RoutingConfig(properties.getApplicationConfigs(), properties.getIgnoredTelemetries());
+    }
+
+    public RoutingConfig getCurrent() {
+        return current;
+    }
+
+    /**
+     * Add a listener, called with the current config, then with every new config
+     *
+     * @param listener
+     */
+    public void addListener(Consumer<RoutingConfig> listener) {
+        listeners.add(listener);
+        listener.accept(current);
+    }
+
+    /**
+     * Replace the routing config, and pass it to the listeners
+     *
+     * @param applicationConfig   new APPLICATION_CONFIG, null to keep the current applications
+     * @param telemetryIgnoreList new TELEMETRY_IGNORE_LIST, null to keep the current ignored types
+     * @return the new config
+     * @throws IllegalArgumentException if the application config is invalid
+     */
+    public synchronized RoutingConfig update(String applicationConfig, String telemetryIgnoreList) {
+        RoutingConfig previous = current;
+        RoutingConfig updated = new RoutingConfig(
+                applicationConfig == null ? previous.getApplicationConfigs() : NozzleProperties.parseApplicationConfigs(applicationConfig),
+                telemetryIgnoreList == null ? previous.getIgnoredTelemetries() : NozzleProperties.parseIgnoredTelemetries(telemetryIgnoreList));
+        current = updated;
+
+        log.info("Routing config reloaded, collecting telemetries for apps: {}, ignoring telemetry types: {}",
+                String.join(", ", updated.getApplicationIds()),
+                updated.getIgnoredTelemetries().stream().map(TelemetryType::toString).collect(Collectors.joining(", ")));
+        for (Consumer<RoutingConfig> listener : listeners) {
+            try {
+                listener.accept(updated);
+            } catch (Exception e) {
+                log.error("Error applying the routing config: {}", e.getMessage(), e);
+            }
+        }
+        return updated;
+    }
+
+    /**
+     * Reload the routing config file if it was modified since it was last loaded
+     */
+    @Scheduled(fixedDelayString = "${routing-config-check-interval:10000}")
+    public synchronized void checkFile() {
+        if (file == null || !Files.isRegularFile(file)) {
+            return;
+        }
+        try {
+            long modified = Files.getLastModifiedTime(file).toMillis();
+            if (modified == fileModified) {
+                return;
+            }
+            Properties values = new Properties();
+            try (InputStream in = Files.newInputStream(file)) {
+                values.load(in);
+            }
+            fileModified = modified;
+            update(values.getProperty(APPLICATION_CONFIG), values.getProperty(TELEMETRY_IGNORE_LIST));
+        } catch (IOException | IllegalArgumentException e) {
+            log.error("Error loading the routing config file {}: {}", file, e.getMessage());
+        }
+    }
+}
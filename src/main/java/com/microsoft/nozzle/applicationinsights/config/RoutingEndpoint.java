@@ -0,0 +1,72 @@
+package com.microsoft.nozzle.applicationinsights.config;
+
+import org.springframework.boot.actuate.endpoint.mvc.AbstractMvcEndpoint;
+import org.springframework.boot.actuate.endpoint.mvc.ActuatorGetMapping;
+import org.springframework.boot.actuate.endpoint.mvc.ActuatorPostMapping;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Actuator endpoint "/routing" showing the monitored applications and ignored telemetry types, and replacing them when
+ * posted {"applicationConfig": "[map[...]]", "telemetryIgnoreList": "Trace"}, either field being optional
+ * <p>
+ * Posting is refused unless the actuator password is set explicitly, as the password generated otherwise may be logged
+ */
+public class RoutingEndpoint extends AbstractMvcEndpoint {
+
+    private final RoutingConfigSource routingConfigSource;
+    private final boolean updatable;
+
+    /**
+     * @param routingConfigSource
+     * @param updatable           whether the routing config can be posted
+     */
+    public RoutingEndpoint(RoutingConfigSource routingConfigSource, boolean updatable) {
+        super("/routing", true);
+        this.routingConfigSource = routingConfigSource;
+        this.updatable = updatable;
+    }
+
+    @ActuatorGetMapping
+    @ResponseBody
+    public Map<String, Object> get() {
+        return describe(routingConfigSource.getCurrent());
+    }
+
+    @ActuatorPostMapping
+    @ResponseBody
+    public ResponseEntity<?> update(@RequestBody Map<String, String> body) {
+        if (!updatable) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN)
+                    .body(Collections.singletonMap("message", "Set SECURITY_USER_PASSWORD to post the routing config"));
+        }
+        try {
+            RoutingConfig updated = routingConfigSource.update(body.get("applicationConfig"), body.get("telemetryIgnoreList"));
+            return ResponseEntity.ok(describe(updated));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Collections.singletonMap("message", "Invalid routing config: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Describe a routing config without the instrumentation keys
+     *
+     * @param config
+     * @return
+     */
+    private static Map<String, Object> describe(RoutingConfig config) {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("applications", config.getApplicationIds());
+        result.put("scopes", config.getApplicationConfigs().stream()
+                .filter(ApplicationConfig::isScoped).map(ApplicationConfig::getScope).collect(Collectors.toList()));
+        result.put("ignoredTelemetries", config.getIgnoredTelemetries().stream().map(TelemetryType::getConfigName).collect(Collectors.toList()));
+        return result;
+    }
+}
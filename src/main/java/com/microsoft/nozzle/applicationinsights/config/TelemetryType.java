@@ -5,20 +5,50 @@ public enum TelemetryType {
     /**
      * Request telemetry
      */
-    HTTP_REQUEST,
+    HTTP_REQUEST("HttpRequest"),
 
     /**
      * Metric telemetry
      */
-    METRIC,
+    METRIC("Metric"),
 
     /**
      * Event telemetry
      */
-    APP_EVENT,
+    APP_EVENT("AppEvent"),
 
     /**
      * Trace telemtry
      */
-    TRACE;
+    TRACE("Trace");
+
+    private final String configName;
+
+    TelemetryType(String configName) {
+        this.configName = configName;
+    }
+
+    /**
+     * The name used in the configuration, e.g. TELEMETRY_IGNORE_LIST
+     *
+     * @return
+     */
+    public String getConfigName() {
+        return configName;
+    }
+
+    /**
+     * Get the telemetry type by its configuration name, case insensitive
+     *
+     * @param name
+     * @return null if there is no such type
+     */
+    public static TelemetryType fromName(String name) {
+        for (TelemetryType type : values()) {
+            if (type.configName.equalsIgnoreCase(name)) {
+                return type;
+            }
+        }
+        return null;
+    }
 }
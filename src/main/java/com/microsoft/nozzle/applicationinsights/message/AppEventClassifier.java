@@ -0,0 +1,211 @@
+package com.microsoft.nozzle.applicationinsights.message;
+
+import com.microsoft.nozzle.applicationinsights.config.NozzleProperties;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Classifies the log lines of the platform sources, e.g. API, STG and SSH, into app events
+ * <p>
+ * Each rule maps a source type and a literal or a regular expression to an event name, with optional fixed
+ * properties. The rules of a source type are compiled into one {@link KeywordMatcher} of their literals, and of the
+ * leading literals of their regular expressions, so a line is scanned once whatever the number of rules. A regular
+ * expression is only matched at the position its leading literal was found, and its named groups become properties of
+ * the event, e.g. {@code (?<exitDescription>[^"]*)} sets the property "exit_description". The first rule in the table
+ * order matching the line wins.
+ */
+@Slf4j
+public class AppEventClassifier {
+
+    /**
+     * The rules used when none are configured, one per line as "SOURCE|Event Name {key=value}|literal" or
+     * "SOURCE|Event Name|re:regex"
+     */
+    public static final String DEFAULT_RULES = String.join("\n",
+            "API|App Started|({\"state\"=>\"STARTED\"})",
+            "API|App Stopped|({\"state\"=>\"STOPPED\"})",
+            "API|App Deleted|Deleted app",
+            "API|App Crashed|re:Process has crashed with type: \"(?<processType>[^\"]*)\"",
+            "API|App Crashed|Process has crashed",
+            "API|App Instance Exited|re:App instance exited with guid \\S+ payload: \\{.*?\"index\"=>(?<instanceIndex>\\d+).*?"
+                    + "\"reason\"=>\"(?<reason>[^\"]*)\", \"exit_description\"=>\"(?<exitDescription>[^\"]*)\"",
+            "STG|Staging Complete|Staging complete",
+            "SSH|SSH Success|Successful remote access",
+            "SSH|SSH End|Remote access ended");
+
+    private static final String REGEX_PREFIX = "re:";
+
+    private static final Pattern FIXED_PROPERTIES = Pattern.compile("^(.*?)\\s*\\{(.*)}$");
+
+    private final Map<String, SourceRules> rulesBySource = new HashMap<String, SourceRules>();
+
+    public AppEventClassifier(NozzleProperties properties) {
+        String rules = properties.getAppEventRules();
+        parseRules(rules == null || rules.trim().isEmpty() ? DEFAULT_RULES : rules);
+    }
+
+    /**
+     * Parse the rules, one per line, each "SOURCE|Event Name {key=value, key=value}|pattern" where the fixed properties
+     * are optional, and the pattern is a literal, or a regular expression prefixed with "re:" starting with a literal
+     *
+     * @param rules
+     */
+    private void parseRules(String rules) {
+        Map<String, List<Rule>> bySource = new LinkedHashMap<String, List<Rule>>();
+        for (String line : rules.split("\\r?\\n")) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split("\\|", 3);
+            if (fields.length < 3 || fields[0].trim().isEmpty() || fields[1].trim().isEmpty() || fields[2].isEmpty()) {
+                log.error("Ignoring app event rule not in the form SOURCE|Event Name|pattern: {}", line);
+                continue;
+            }
+            try {
+                bySource.computeIfAbsent(fields[0].trim(), source -> new ArrayList<Rule>()).add(parseRule(fields[1].trim(), fields[2]));
+            } catch (IllegalArgumentException e) {
+                log.error("Ignoring app event rule {}: {}", line, e.getMessage());
+            }
+        }
+        bySource.forEach((source, sourceRules) -> rulesBySource.put(source, new SourceRules(sourceRules)));
+    }
+
+    private static Rule parseRule(String name, String pattern) {
+        Map<String, String> fixed = new LinkedHashMap<String, String>();
+        Matcher properties = FIXED_PROPERTIES.matcher(name);
+        if (properties.matches()) {
+            name = properties.group(1);
+            for (String property : properties.group(2).split(",")) {
+                int equals = property.indexOf('=');
+                if (equals <= 0) {
+                    throw new IllegalArgumentException("property not in the form key=value: " + property.trim());
+                }
+                fixed.put(property.substring(0, equals).trim(), property.substring(equals + 1).trim());
+            }
+        }
+
+        if (!pattern.startsWith(REGEX_PREFIX)) {
+            return new Rule(name, fixed, pattern, null, Collections.<String>emptyList());
+        }
+
+        LiteralRegex regex = LiteralRegex.compile(pattern.substring(REGEX_PREFIX.length()));
+        return new Rule(name, fixed, regex.getLiteral(), regex.getPattern(), regex.getGroupNames());
+    }
+
+    /**
+     * Classify a log line into an event
+     *
+     * @param sourceType
+     * @param message
+     * @return the event with its extracted and fixed properties, null if no rule matches
+     */
+    public EventMessage classify(String sourceType, String message) {
+        SourceRules sourceRules = rulesBySource.get(sourceType);
+        if (sourceRules == null || message == null) {
+            return null;
+        }
+        return sourceRules.classify(message);
+    }
+
+    private static final class Rule {
+        private final String name;
+        private final Map<String, String> fixedProperties;
+        private final String literal;
+        // Null for a literal rule
+        private final Pattern pattern;
+        private final List<String> groups;
+        private final List<String> propertyNames = new ArrayList<String>();
+
+        private Rule(String name, Map<String, String> fixedProperties, String literal, Pattern pattern, List<String> groups) {
+            this.name = name;
+            this.fixedProperties = fixedProperties;
+            this.literal = literal;
+            this.pattern = pattern;
+            this.groups = groups;
+            for (String group : groups) {
+                propertyNames.add(toPropertyName(group));
+            }
+        }
+
+        /**
+         * "exitDescription" to "exit_description", as the other telemetry properties
+         */
+        private static String toPropertyName(String group) {
+            StringBuilder name = new StringBuilder(group.length() + 4);
+            for (int i = 0; i < group.length(); i++) {
+                char c = group.charAt(i);
+                if (Character.isUpperCase(c)) {
+                    name.append('_').append(Character.toLowerCase(c));
+                } else {
+                    name.append(c);
+                }
+            }
+            return name.toString();
+        }
+    }
+
+    /**
+     * Rules of a source type, with the keyword matcher of their literals
+     */
+    private static final class SourceRules {
+        private final List<Rule> rules;
+        private final KeywordMatcher matcher;
+
+        private SourceRules(List<Rule> rules) {
+            this.rules = rules;
+            List<String> literals = new ArrayList<String>();
+            for (Rule rule : rules) {
+                literals.add(rule.literal);
+            }
+            this.matcher = new KeywordMatcher(literals);
+        }
+
+        private EventMessage classify(String message) {
+            // Index of the first rule matching so far, and the regular expression match of that rule
+            int[] best = {rules.size()};
+            Matcher[] bestMatch = new Matcher[1];
+            matcher.scan(message, (index, start) -> {
+                if (index < best[0]) {
+                    Rule rule = rules.get(index);
+                    if (rule.pattern == null) {
+                        best[0] = index;
+                        bestMatch[0] = null;
+                    } else {
+                        Matcher match = rule.pattern.matcher(message).region(start, message.length());
+                        if (match.lookingAt()) {
+                            best[0] = index;
+                            bestMatch[0] = match;
+                        }
+                    }
+                }
+                // No rule can win over the first one
+                return best[0] > 0;
+            });
+            if (best[0] == rules.size()) {
+                return null;
+            }
+
+            Rule rule = rules.get(best[0]);
+            EventMessage event = new EventMessage(rule.name);
+            event.getProperties().putAll(rule.fixedProperties);
+            if (bestMatch[0] != null) {
+                for (int i = 0; i < rule.groups.size(); i++) {
+                    String value = bestMatch[0].group(rule.groups.get(i));
+                    if (value != null) {
+                        event.getProperties().put(rule.propertyNames.get(i), value);
+                    }
+                }
+            }
+            return event;
+        }
+    }
+}
@@ -1,22 +1,38 @@
 package com.microsoft.nozzle.applicationinsights.message;
 
+import com.microsoft.nozzle.applicationinsights.cache.AppMetadata;
 import lombok.Data;
 
 @Data
 public class BaseMessage {
 
-    private String applicationId;
+    // app, space and organization of the message, shared between messages of the same app
+    private AppMetadata appMetadata = AppMetadata.EMPTY;
 
-    private String applicationName;
+    // source instance of LogMessage, instance index of ContainerMetric
+    private String instanceId;
 
-    private String spaceId;
+    public String getApplicationId() {
+        return appMetadata.getApplicationId();
+    }
 
-    private String spaceName;
+    public String getApplicationName() {
+        return appMetadata.getApplicationName();
+    }
 
-    private String organizationId;
+    public String getSpaceId() {
+        return appMetadata.getSpaceId();
+    }
 
-    private String organizationName;
+    public String getSpaceName() {
+        return appMetadata.getSpaceName();
+    }
 
-    // source instance of LogMessage, instance index of ContainerMetric
-    private String instanceId;
+    public String getOrganizationId() {
+        return appMetadata.getOrganizationId();
+    }
+
+    public String getOrganizationName() {
+        return appMetadata.getOrganizationName();
+    }
 }
@@ -1,7 +1,11 @@
 package com.microsoft.nozzle.applicationinsights.message;
 
+import com.microsoft.nozzle.applicationinsights.metric.LogLinearHistogram;
 import lombok.Data;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 @Data
 public class CustomMetric extends BaseMessage {
     private String name;
@@ -16,6 +20,15 @@ public class CustomMetric extends BaseMessage {
 
     private double sumOfSquares;
 
+    // Whether the series is aggregated into a histogram
+    private boolean histogram;
+
+    // Distribution of the values of a histogram series, set when drained
+    private LogLinearHistogram distribution;
+
+    // Dimensions of the series, sent as telemetry properties
+    private final Map<String, String> properties = new LinkedHashMap<String, String>();
+
     public CustomMetric(String name){
         this.name = name;
     }
@@ -25,6 +38,9 @@ public class CustomMetric extends BaseMessage {
     }
 
     public double getVariance() {
+        if (distribution != null) {
+            return distribution.getVariance();
+        }
         Double average = getAverage();
         return (count == 0) ? 0 : (sumOfSquares / count) - (average * average);
     }
@@ -2,10 +2,16 @@ package com.microsoft.nozzle.applicationinsights.message;
 
 import lombok.Data;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 @Data
 public class EventMessage extends BaseMessage {
     private String name;
 
+    // Properties extracted from the log line or fixed by the event rule, sent as telemetry properties
+    private final Map<String, String> properties = new LinkedHashMap<String, String>();
+
     public EventMessage(String name) {
         this.name = name;
     }
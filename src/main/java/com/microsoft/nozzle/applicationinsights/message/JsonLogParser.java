@@ -0,0 +1,282 @@
+package com.microsoft.nozzle.applicationinsights.message;
+
+import com.microsoft.nozzle.applicationinsights.config.NozzleProperties;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Lifts the fields of a JSON log line into the properties of its trace
+ * <p>
+ * The line is read in a single pass without building a tree. The "message" or "msg" field becomes the message of the
+ * trace, the "level" or "severity" field its severity, and the other top level fields with a string, number or boolean
+ * value become properties, up to a maximum number of fields and characters. Nested objects and arrays are skipped.
+ * A line that is not a valid JSON object is left as is.
+ */
+public class JsonLogParser {
+
+    /**
+     * Thrown on the first character that is not valid JSON, without stack trace as malformed lines are expected
+     */
+    private static final class MalformedException extends RuntimeException {
+        private MalformedException() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final MalformedException MALFORMED = new MalformedException();
+
+    private final int maxFields;
+    private final int maxChars;
+
+    public JsonLogParser(NozzleProperties properties) {
+        this.maxFields = Math.max(0, properties.getTraceJsonMaxFields());
+        this.maxChars = Math.max(0, properties.getTraceJsonMaxChars());
+    }
+
+    /**
+     * Cheap check run on every line of the apps logging JSON, before parsing
+     *
+     * @param line
+     * @return whether the line may be a JSON object
+     */
+    public static boolean isJson(String line) {
+        return line.length() > 1 && line.charAt(0) == '{';
+    }
+
+    /**
+     * Lift the fields of a JSON line into a trace
+     *
+     * @param line
+     * @param trace
+     * @return false if the line is not a valid JSON object, the trace is then unchanged
+     */
+    public boolean lift(String line, TraceMessage trace) {
+        Reader reader = new Reader(line);
+        Map<String, String> lifted = new LinkedHashMap<String, String>();
+        String message = null;
+        String level = null;
+        int chars = 0;
+        try {
+            reader.skipWhitespace();
+            reader.expect('{');
+            reader.skipWhitespace();
+            if (!reader.consume('}')) {
+                do {
+                    reader.skipWhitespace();
+                    String key = reader.readString();
+                    reader.skipWhitespace();
+                    reader.expect(':');
+                    reader.skipWhitespace();
+                    String value = reader.readScalar();
+                    reader.skipWhitespace();
+                    if (value == null) {
+                        continue;
+                    }
+                    if (message == null && ("message".equals(key) || "msg".equals(key))) {
+                        message = value;
+                        continue;
+                    }
+                    if (level == null && ("level".equals(key) || "severity".equals(key))) {
+                        level = value;
+                    }
+                    if (lifted.size() < maxFields && chars + key.length() + value.length() <= maxChars) {
+                        lifted.put(key, value);
+                        chars += key.length() + value.length();
+                    }
+                } while (reader.consume(','));
+                reader.expect('}');
+            }
+            reader.skipWhitespace();
+            if (!reader.isDone()) {
+                return false;
+            }
+        } catch (MalformedException e) {
+            return false;
+        }
+
+        if (message != null) {
+            trace.setMessage(message);
+        }
+        trace.setLevel(level);
+        trace.getProperties().putAll(lifted);
+        return true;
+    }
+
+    /**
+     * Position in a JSON text
+     */
+    private static final class Reader {
+        private final String text;
+        private int pos = 0;
+
+        private Reader(String text) {
+            this.text = text;
+        }
+
+        private boolean isDone() {
+            return pos >= text.length();
+        }
+
+        private void skipWhitespace() {
+            while (pos < text.length()) {
+                char c = text.charAt(pos);
+                if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                    return;
+                }
+                pos++;
+            }
+        }
+
+        private boolean consume(char c) {
+            if (pos < text.length() && text.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!consume(c)) {
+                throw MALFORMED;
+            }
+        }
+
+        /**
+         * Read a string, only copying it when it has escapes
+         *
+         * @return
+         */
+        private String readString() {
+            expect('"');
+            int start = pos;
+            StringBuilder unescaped = null;
+            while (pos < text.length()) {
+                char c = text.charAt(pos);
+                if (c == '"') {
+                    String value = unescaped == null ? text.substring(start, pos) : unescaped.append(text, start, pos).toString();
+                    pos++;
+                    return value;
+                }
+                if (c == '\\') {
+                    if (unescaped == null) {
+                        unescaped = new StringBuilder();
+                    }
+                    unescaped.append(text, start, pos);
+                    pos++;
+                    unescaped.append(readEscape());
+                    start = pos;
+                } else {
+                    pos++;
+                }
+            }
+            throw MALFORMED;
+        }
+
+        private char readEscape() {
+            if (pos >= text.length()) {
+                throw MALFORMED;
+            }
+            char c = text.charAt(pos++);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    return c;
+                case 'b':
+                    return '\b';
+                case 'f':
+                    return '\f';
+                case 'n':
+                    return '\n';
+                case 'r':
+                    return '\r';
+                case 't':
+                    return '\t';
+                case 'u':
+                    if (pos + 4 > text.length()) {
+                        throw MALFORMED;
+                    }
+                    try {
+                        char unicode = (char) Integer.parseInt(text.substring(pos, pos + 4), 16);
+                        pos += 4;
+                        return unicode;
+                    } catch (NumberFormatException e) {
+                        throw MALFORMED;
+                    }
+                default:
+                    throw MALFORMED;
+            }
+        }
+
+        /**
+         * Read a value
+         *
+         * @return the string, or the text of the number or boolean, null for null, an object or an array
+         */
+        private String readScalar() {
+            if (pos >= text.length()) {
+                throw MALFORMED;
+            }
+            char c = text.charAt(pos);
+            if (c == '"') {
+                return readString();
+            }
+            if (c == '{' || c == '[') {
+                skipNested();
+                return null;
+            }
+            int start = pos;
+            while (pos < text.length() && "-+.eE0123456789truefalsn".indexOf(text.charAt(pos)) >= 0) {
+                pos++;
+            }
+            String token = text.substring(start, pos);
+            if (token.isEmpty()) {
+                throw MALFORMED;
+            }
+            if ("null".equals(token)) {
+                return null;
+            }
+            if (!"true".equals(token) && !"false".equals(token) && !isNumber(token)) {
+                throw MALFORMED;
+            }
+            return token;
+        }
+
+        private static boolean isNumber(String token) {
+            char first = token.charAt(0);
+            if (first != '-' && (first < '0' || first > '9')) {
+                return false;
+            }
+            try {
+                Double.parseDouble(token);
+                return true;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Skip an object or an array, only checking that the brackets and strings are balanced
+         */
+        private void skipNested() {
+            int depth = 0;
+            while (pos < text.length()) {
+                char c = text.charAt(pos);
+                if (c == '"') {
+                    readString();
+                    continue;
+                }
+                pos++;
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    if (--depth == 0) {
+                        return;
+                    }
+                }
+            }
+            throw MALFORMED;
+        }
+    }
+}
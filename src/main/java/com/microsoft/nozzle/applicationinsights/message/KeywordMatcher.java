@@ -0,0 +1,145 @@
+package com.microsoft.nozzle.applicationinsights.message;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Aho-Corasick automaton finding all the occurrences of a set of keywords in one scan of a text
+ * <p>
+ * The automaton is compiled into a transition table over the characters of the keywords, so each character of the
+ * text costs one table lookup whatever the number of keywords.
+ */
+class KeywordMatcher {
+
+    /**
+     * Called with each keyword found, in the order of their end in the text
+     */
+    @FunctionalInterface
+    interface Hit {
+
+        /**
+         * @param keyword index of the keyword
+         * @param start   index of the first character of the keyword in the text
+         * @return false to stop the scan
+         */
+        boolean found(int keyword, int start);
+    }
+
+    private static final int ASCII = 128;
+
+    private final int[] lengths;
+
+    // Character class of the ASCII characters, 0 for the characters in no keyword
+    private final int[] asciiClasses = new int[ASCII];
+    private final Map<Character, Integer> otherClasses = new HashMap<Character, Integer>();
+
+    // Next state per state and character class
+    private final int[][] transitions;
+
+    // Keywords ending at each state, including those of its suffixes
+    private final int[][] outputs;
+
+    KeywordMatcher(List<String> keywords) {
+        lengths = new int[keywords.size()];
+        int classCount = 1;
+        for (int k = 0; k < keywords.size(); k++) {
+            String keyword = keywords.get(k);
+            if (keyword.isEmpty()) {
+                throw new IllegalArgumentException("Empty keyword");
+            }
+            lengths[k] = keyword.length();
+            for (int i = 0; i < keyword.length(); i++) {
+                char c = keyword.charAt(i);
+                if (charClass(c) == 0) {
+                    if (c < ASCII) {
+                        asciiClasses[c] = classCount++;
+                    } else {
+                        otherClasses.put(c, classCount++);
+                    }
+                }
+            }
+        }
+
+        // Trie of the keywords, state 0 being the root
+        List<int[]> trie = new ArrayList<int[]>();
+        List<List<Integer>> ends = new ArrayList<List<Integer>>();
+        trie.add(new int[classCount]);
+        ends.add(new ArrayList<Integer>());
+        for (int k = 0; k < keywords.size(); k++) {
+            String keyword = keywords.get(k);
+            int state = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                int c = charClass(keyword.charAt(i));
+                if (trie.get(state)[c] == 0) {
+                    trie.get(state)[c] = trie.size();
+                    trie.add(new int[classCount]);
+                    ends.add(new ArrayList<Integer>());
+                }
+                state = trie.get(state)[c];
+            }
+            ends.get(state).add(k);
+        }
+
+        // Complete the trie into a transition table following the failure links, breadth first
+        transitions = trie.toArray(new int[trie.size()][]);
+        outputs = new int[transitions.length][];
+        int[] failures = new int[transitions.length];
+        outputs[0] = new int[0];
+        Queue<Integer> queue = new ArrayDeque<Integer>();
+        for (int c = 0; c < classCount; c++) {
+            int next = transitions[0][c];
+            if (next != 0) {
+                failures[next] = 0;
+                queue.add(next);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            List<Integer> found = new ArrayList<Integer>(ends.get(state));
+            for (int keyword : outputs[failures[state]]) {
+                found.add(keyword);
+            }
+            outputs[state] = found.stream().mapToInt(Integer::intValue).toArray();
+
+            for (int c = 0; c < classCount; c++) {
+                int next = transitions[state][c];
+                if (next != 0) {
+                    failures[next] = transitions[failures[state]][c];
+                    queue.add(next);
+                } else {
+                    transitions[state][c] = transitions[failures[state]][c];
+                }
+            }
+        }
+    }
+
+    private int charClass(char c) {
+        if (c < ASCII) {
+            return asciiClasses[c];
+        }
+        Integer charClass = otherClasses.get(c);
+        return charClass == null ? 0 : charClass;
+    }
+
+    /**
+     * Scan a text, calling the hit callback with each keyword found
+     *
+     * @param text
+     * @param hit
+     */
+    void scan(CharSequence text, Hit hit) {
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            state = transitions[state][charClass(text.charAt(i))];
+            for (int keyword : outputs[state]) {
+                if (!hit.found(keyword, i - lengths[keyword] + 1)) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.microsoft.nozzle.applicationinsights.message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Regular expression of a rule starting with a literal, the literal being searched with a {@link KeywordMatcher} and the
+ * expression only matched where it was found
+ */
+final class LiteralRegex {
+
+    private static final Pattern GROUP_NAME = Pattern.compile("\\(\\?<([a-zA-Z][a-zA-Z0-9]*)>");
+
+    private final String literal;
+    private final Pattern pattern;
+    private final List<String> groupNames;
+
+    private LiteralRegex(String literal, Pattern pattern, List<String> groupNames) {
+        this.literal = literal;
+        this.pattern = pattern;
+        this.groupNames = groupNames;
+    }
+
+    /**
+     * Compile a regular expression of a rule
+     *
+     * @param regex
+     * @return
+     * @throws IllegalArgumentException if the expression is invalid or does not start with a literal
+     */
+    static LiteralRegex compile(String regex) {
+        String literal = leadingLiteral(regex);
+        if (literal.isEmpty()) {
+            throw new IllegalArgumentException("regular expression not starting with a literal");
+        }
+        Pattern pattern;
+        try {
+            pattern = Pattern.compile(regex);
+        } catch (PatternSyntaxException e) {
+            throw new IllegalArgumentException(e.getDescription());
+        }
+        List<String> groupNames = new ArrayList<String>();
+        Matcher group = GROUP_NAME.matcher(regex);
+        while (group.find()) {
+            groupNames.add(group.group(1));
+        }
+        return new LiteralRegex(literal, pattern, Collections.unmodifiableList(groupNames));
+    }
+
+    /**
+     * Get the literal every match of a regular expression starts with
+     *
+     * @param regex
+     * @return empty if the expression does not start with a literal, or has a top level alternation
+     */
+    private static String leadingLiteral(String regex) {
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                inClass = c != ']';
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth == 0) {
+                return "";
+            }
+        }
+
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            char next;
+            if (c == '\\') {
+                if (i + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    break;
+                }
+                next = regex.charAt(i + 1);
+                i += 2;
+            } else if ("[](){}.*+?^$|".indexOf(c) >= 0) {
+                break;
+            } else {
+                next = c;
+                i++;
+            }
+            // A quantified character may be absent
+            if (i < regex.length() && "?*{".indexOf(regex.charAt(i)) >= 0) {
+                break;
+            }
+            literal.append(next);
+        }
+        return literal.toString();
+    }
+
+    String getLiteral() {
+        return literal;
+    }
+
+    Pattern getPattern() {
+        return pattern;
+    }
+
+    /**
+     * @return the names of the named groups, in their order in the expression
+     */
+    List<String> getGroupNames() {
+        return groupNames;
+    }
+}
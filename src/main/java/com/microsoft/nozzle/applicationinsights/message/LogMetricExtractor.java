@@ -0,0 +1,202 @@
+package com.microsoft.nozzle.applicationinsights.message;
+
+import com.microsoft.nozzle.applicationinsights.config.NozzleProperties;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ObjDoubleConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts numeric values from application log lines into custom metrics
+ * <p>
+ * Each rule is a regular expression, of all apps or of one app, whose groups are mapped to metric names, e.g.
+ * {@code processed batch size=(?<size>\d+) took=(?<took>\d+)ms} with "size=Batch Size, took=Batch Duration (ms)".
+ * The leading literals of the rules of an app are compiled into one {@link KeywordMatcher}, so a line is scanned once
+ * whatever the number of rules, and lines containing none of the literals never reach the regular expression engine.
+ * A regular expression is only matched at the position its literal was found.
+ */
+@Slf4j
+public class LogMetricExtractor {
+
+    private static final String ALL_APPS = "*";
+
+    // Rules of all apps, and rules of each app with a rule of its own, together with the rules of all apps
+    private final Rules globalRules;
+    private final Map<String, Rules> appRules = new HashMap<String, Rules>();
+
+    public LogMetricExtractor(NozzleProperties properties) {
+        Map<String, List<Rule>> byApp = parseRules(properties.getLogMetricRules());
+        List<Rule> global = byApp.getOrDefault(ALL_APPS, Collections.<Rule>emptyList());
+        globalRules = global.isEmpty() ? null : new Rules(global);
+        byApp.forEach((appId, rules) -> {
+            if (!ALL_APPS.equals(appId)) {
+                List<Rule> combined = new ArrayList<Rule>(rules);
+                combined.addAll(global);
+                appRules.put(appId, new Rules(combined));
+            }
+        });
+    }
+
+    /**
+     * Parse the rules, one per line, each "app-guid|group=Metric Name, group=Metric Name|regex", "*" selecting all
+     * apps, or "app-guid|Metric Name|regex" for the first group
+     *
+     * @param rules
+     * @return
+     */
+    private static Map<String, List<Rule>> parseRules(String rules) {
+        Map<String, List<Rule>> byApp = new LinkedHashMap<String, List<Rule>>();
+        if (rules == null || rules.trim().isEmpty()) {
+            return byApp;
+        }
+        for (String line : rules.split("\\r?\\n")) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split("\\|", 3);
+            if (fields.length < 3 || fields[0].trim().isEmpty() || fields[1].trim().isEmpty() || fields[2].isEmpty()) {
+                log.error("Ignoring log metric rule not in the form app-guid|group=Metric Name|regex: {}", line);
+                continue;
+            }
+            try {
+                byApp.computeIfAbsent(fields[0].trim(), appId -> new ArrayList<Rule>()).add(parseRule(fields[1], fields[2]));
+            } catch (IllegalArgumentException e) {
+                log.error("Ignoring log metric rule {}: {}", line, e.getMessage());
+            }
+        }
+        return byApp;
+    }
+
+    private static Rule parseRule(String metrics, String regex) {
+        LiteralRegex compiled = LiteralRegex.compile(regex);
+        Pattern pattern = compiled.getPattern();
+        List<String> groupNames = compiled.getGroupNames();
+
+        List<String> groups = new ArrayList<String>();
+        List<String> names = new ArrayList<String>();
+        if (metrics.indexOf('=') < 0) {
+            if (pattern.matcher("").groupCount() < 1) {
+                throw new IllegalArgumentException("regular expression without group");
+            }
+            groups.add(null);
+            names.add(metrics.trim());
+        } else {
+            for (String metric : metrics.split(",")) {
+                int equals = metric.indexOf('=');
+                String groupName = equals < 0 ? "" : metric.substring(0, equals).trim();
+                if (!groupNames.contains(groupName)) {
+                    throw new IllegalArgumentException("no group named " + groupName);
+                }
+                groups.add(groupName);
+                names.add(metric.substring(equals + 1).trim());
+            }
+        }
+        return new Rule(compiled.getLiteral(), pattern, groups, names);
+    }
+
+    /**
+     * @return whether any rule is configured
+     */
+    public boolean isEnabled() {
+        return globalRules != null || !appRules.isEmpty();
+    }
+
+    /**
+     * Extract the metric values of a log line
+     *
+     * @param appId
+     * @param message
+     * @param consumer receives the metric name and value of each value extracted
+     * @return whether a value was extracted
+     */
+    public boolean extract(String appId, String message, ObjDoubleConsumer<String> consumer) {
+        Rules rules = appRules.get(appId);
+        if (rules == null) {
+            rules = globalRules;
+        }
+        if (rules == null || message == null) {
+            return false;
+        }
+        return rules.extract(message, consumer);
+    }
+
+    private static final class Rule {
+        private final String literal;
+        private final Pattern pattern;
+        // Group name per metric, null for the first group
+        private final List<String> groups;
+        private final List<String> names;
+
+        private Rule(String literal, Pattern pattern, List<String> groups, List<String> names) {
+            this.literal = literal;
+            this.pattern = pattern;
+            this.groups = groups;
+            this.names = names;
+        }
+
+        /**
+         * Match the rule at the position of its literal
+         *
+         * @return whether a value was extracted
+         */
+        private boolean extract(String message, int start, ObjDoubleConsumer<String> consumer) {
+            Matcher match = pattern.matcher(message).region(start, message.length());
+            if (!match.lookingAt()) {
+                return false;
+            }
+            boolean extracted = false;
+            for (int i = 0; i < groups.size(); i++) {
+                String value = groups.get(i) == null ? match.group(1) : match.group(groups.get(i));
+                if (value == null) {
+                    continue;
+                }
+                try {
+                    consumer.accept(names.get(i), Double.parseDouble(value));
+                    extracted = true;
+                } catch (NumberFormatException e) {
+                    log.trace("Ignoring value {} of metric {}, not a number", value, names.get(i));
+                }
+            }
+            return extracted;
+        }
+    }
+
+    /**
+     * Rules of an app, with the keyword matcher of their literals
+     */
+    private static final class Rules {
+        private final List<Rule> rules;
+        private final KeywordMatcher matcher;
+
+        private Rules(List<Rule> rules) {
+            this.rules = rules;
+            List<String> literals = new ArrayList<String>();
+            for (Rule rule : rules) {
+                literals.add(rule.literal);
+            }
+            this.matcher = new KeywordMatcher(literals);
+        }
+
+        private boolean extract(String message, ObjDoubleConsumer<String> consumer) {
+            // Each rule is applied at the first position of its literal where it matches
+            boolean[] done = new boolean[rules.size()];
+            boolean[] extracted = {false};
+            matcher.scan(message, (index, start) -> {
+                if (!done[index] && rules.get(index).extract(message, start, consumer)) {
+                    done[index] = true;
+                    extracted[0] = true;
+                }
+                return true;
+            });
+            return extracted[0];
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package com.microsoft.nozzle.applicationinsights.message;
+
+import com.microsoft.nozzle.applicationinsights.cache.LruCache;
+import com.microsoft.nozzle.applicationinsights.config.NozzleProperties;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Turns request paths into route templates, so that request names have a bounded cardinality
+ * <p>
+ * The query string is dropped, then the path is matched against the route templates of its app and the global ones,
+ * where a "*" or "{name}" segment matches any segment. Paths matching no template have their numeric, GUID and long
+ * hexadecimal segments replaced by {id}, {guid} and {hex}. One LRU cache of all apps maps an app and a path without
+ * its query string to the route, and each app has a limit on distinct routes beyond which new routes are folded into
+ * {@link #OVERFLOW_ROUTE}. The distinct routes are only kept for the most recently seen apps, so the memory is bounded
+ * whatever the number of apps of the foundation.
+ */
+@Slf4j
+public class RequestNameNormalizer {
+
+    public static final String OVERFLOW_ROUTE = "/{other}";
+
+    private static final String[] METHODS = {"GET", "POST", "PUT", "DELETE", "PATCH", "HEAD", "OPTIONS"};
+
+    private static final int CACHE_STRIPES = 16;
+
+    private final List<RouteTemplate> globalTemplates = new ArrayList<RouteTemplate>();
+    private final Map<String, List<RouteTemplate>> appTemplates = new ConcurrentHashMap<String, List<RouteTemplate>>();
+    private final LruCache<String, AppRoutes> apps;
+    private final LruCache<PathKey, Route> cache;
+
+    private final int routeLimit;
+
+    public RequestNameNormalizer(NozzleProperties properties) {
+        this.apps = new LruCache<String, AppRoutes>(Math.max(1, properties.getRequestNameMaxApps()), CACHE_STRIPES);
+        this.cache = new LruCache<PathKey, Route>(Math.max(1, properties.getRequestNameCacheSize()), CACHE_STRIPES);
+        this.routeLimit = Math.max(1, properties.getRequestNameLimit());
+        parseTemplates(properties.getRequestRouteTemplates());
+    }
+
+    /**
+     * Parse the comma separated route templates, each either global, "/orders/{id}", or of one app,
+     * "app-guid:/orders/{id}"
+     *
+     * @param templates
+     */
+    private void parseTemplates(String templates) {
+        if (templates == null || templates.isEmpty()) {
+            return;
+        }
+        for (String entry : templates.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int slash = entry.indexOf('/');
+            if (slash < 0) {
+                log.error("Ignoring route template without path: {}", entry);
+                continue;
+            }
+            RouteTemplate template = new RouteTemplate(entry.substring(slash));
+            if (slash == 0) {
+                globalTemplates.add(template);
+            } else {
+                String appId = entry.substring(0, slash - (entry.charAt(slash - 1) == ':' ? 1 : 0));
+                appTemplates.computeIfAbsent(appId, id -> new ArrayList<RouteTemplate>()).add(template);
+            }
+        }
+    }
+
+    /**
+     * Get the request name of a request: method and route
+     *
+     * @param appId
+     * @param method
+     * @param path
+     * @return
+     */
+    public String getName(String appId, String method, String path) {
+        return getRoute(appId, path).getName(method);
+    }
+
+    /**
+     * Get the route of a request path
+     *
+     * @param appId
+     * @param path
+     * @return
+     */
+    public Route getRoute(String appId, String path) {
+        String id = appId == null ? "" : appId;
+        // The query string is not part of the route, so it is not part of the key either
+        int query = path.indexOf('?');
+        PathKey key = new PathKey(id, query < 0 ? path : path.substring(0, query));
+        Route route = cache.get(key);
+        if (route == null) {
+            AppRoutes routes = apps.get(id);
+            if (routes == null) {
+                routes = new AppRoutes(id);
+                apps.put(id, routes);
+            }
+            route = routes.intern(normalize(routes.templates, key.path));
+            cache.put(key, route);
+        }
+        return route;
+    }
+
+    /**
+     * @param appTemplates
+     * @param path         without query string
+     * @return
+     */
+    private String normalize(List<RouteTemplate> appTemplates, String path) {
+        int end = path.length();
+
+        for (RouteTemplate template : appTemplates) {
+            if (template.matches(path, end)) {
+                return template.template;
+            }
+        }
+        for (RouteTemplate template : globalTemplates) {
+            if (template.matches(path, end)) {
+                return template.template;
+            }
+        }
+
+        StringBuilder normalized = null;
+        int start = 0;
+        while (start < end) {
+            int slash = path.indexOf('/', start);
+            int segmentEnd = slash < 0 || slash > end ? end : slash;
+            String replacement = replacement(path, start, segmentEnd);
+            if (replacement != null && normalized == null) {
+                normalized = new StringBuilder(end + 8).append(path, 0, start);
+            }
+            if (normalized != null) {
+                if (replacement != null) {
+                    normalized.append(replacement);
+                } else {
+                    normalized.append(path, start, segmentEnd);
+                }
+                if (segmentEnd < end) {
+                    normalized.append('/');
+                }
+            }
+            start = segmentEnd + 1;
+        }
+        if (normalized != null) {
+            return normalized.toString();
+        }
+        return path;
+    }
+
+    /**
+     * @return the placeholder of an identifier segment, null if the segment is kept
+     */
+    private static String replacement(String s, int start, int end) {
+        int length = end - start;
+        if (length == 0) {
+            return null;
+        }
+        boolean digits = true;
+        boolean hex = true;
+        boolean guid = length == 36;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            int offset = i - start;
+            boolean dash = offset == 8 || offset == 13 || offset == 18 || offset == 23;
+            boolean isDigit = c >= '0' && c <= '9';
+            boolean isHex = isDigit || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+            digits &= isDigit;
+            hex &= isHex;
+            guid &= dash ? c == '-' : isHex;
+        }
+        if (digits) {
+            return "{id}";
+        }
+        if (guid) {
+            return "{guid}";
+        }
+        if (hex && length >= 16) {
+            return "{hex}";
+        }
+        return null;
+    }
+
+    /**
+     * Route template with its request names, shared by all the requests of the route
+     */
+    public static final class Route {
+        private final String template;
+        // Names of the common methods, computed once
+        private final String[] names = new String[METHODS.length];
+
+        private Route(String template) {
+            this.template = template;
+        }
+
+        public String getTemplate() {
+            return template;
+        }
+
+        public String getName(String method) {
+            for (int i = 0; i < METHODS.length; i++) {
+                if (METHODS[i].equals(method)) {
+                    String name = names[i];
+                    if (name == null) {
+                        name = method + " " + template;
+                        names[i] = name;
+                    }
+                    return name;
+                }
+            }
+            return method + " " + template;
+        }
+    }
+
+    /**
+     * App id and request path without query string
+     */
+    private static final class PathKey {
+        private final String appId;
+        private final String path;
+        private final int hash;
+
+        private PathKey(String appId, String path) {
+            this.appId = appId;
+            this.path = path;
+            this.hash = 31 * appId.hashCode() + path.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof PathKey)) {
+                return false;
+            }
+            PathKey other = (PathKey) o;
+            return hash == other.hash && path.equals(other.path) && appId.equals(other.appId);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Templates and distinct routes of an app
+     */
+    private final class AppRoutes {
+        private final String appId;
+        private final List<RouteTemplate> templates;
+        private final Map<String, Route> routes = new ConcurrentHashMap<String, Route>();
+        private final Route overflow = new Route(OVERFLOW_ROUTE);
+
+        private AppRoutes(String appId) {
+            this.appId = appId;
+            this.templates = appTemplates.getOrDefault(appId, Collections.<RouteTemplate>emptyList());
+        }
+
+        /**
+         * Get the shared route of a template, or the overflow route when the app has too many distinct routes
+         */
+        private Route intern(String template) {
+            Route route = routes.get(template);
+            if (route != null) {
+                return route;
+            }
+            if (routes.size() >= routeLimit) {
+                if (routes.putIfAbsent(OVERFLOW_ROUTE, overflow) == null) {
+                    log.warn("App {} has more than {} distinct request names, new names are reported as {}", appId, routeLimit, OVERFLOW_ROUTE);
+                }
+                return overflow;
+            }
+            Route created = routes.putIfAbsent(template, new Route(template));
+            return created == null ? routes.get(template) : created;
+        }
+    }
+
+    /**
+     * Route template, "*" and "{name}" segments match any segment
+     */
+    private static final class RouteTemplate {
+        private final String template;
+        private final String[] segments;
+
+        private RouteTemplate(String template) {
+            this.template = template;
+            this.segments = template.substring(1).split("/", -1);
+        }
+
+        private boolean matches(String path, int end) {
+            if (end == 0 || path.charAt(0) != '/') {
+                return false;
+            }
+            int start = 1;
+            for (int i = 0; i < segments.length; i++) {
+                if (start > end) {
+                    return false;
+                }
+                int slash = path.indexOf('/', start);
+                int segmentEnd = slash < 0 || slash > end ? end : slash;
+                String segment = segments[i];
+                boolean wildcard = segment.equals("*") || (segment.startsWith("{") && segment.endsWith("}"));
+                if (!wildcard && (segment.length() != segmentEnd - start || !path.regionMatches(start, segment, 0, segment.length()))) {
+                    return false;
+                }
+                start = segmentEnd + 1;
+            }
+            return start > end;
+        }
+    }
+}
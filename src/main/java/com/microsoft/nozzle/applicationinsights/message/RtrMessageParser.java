@@ -0,0 +1,326 @@
+package com.microsoft.nozzle.applicationinsights.message;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
+import java.util.Date;
+
+/**
+ * Single pass parser of gorouter access log lines
+ * <p>
+ * The fixed prefix of the line (host, timestamp, request line, status, byte counts, referer, user agent and addresses)
+ * is read positionally, the trailing key:"value" / key:value fields are read by name, so new or reordered fields
+ * such as x_b3_traceid or gorouter_time do not break the parsing.
+ */
+@Slf4j
+public final class RtrMessageParser {
+
+    private static final String X_FORWARDED_FOR = "x_forwarded_for";
+    private static final String X_FORWARDED_PROTO = "x_forwarded_proto";
+    private static final String VCAP_REQUEST_ID = "vcap_request_id";
+    private static final String RESPONSE_TIME = "response_time";
+    private static final String APP_ID = "app_id";
+    private static final String APP_INDEX = "app_index";
+
+    /**
+     * Fallback decoder for timestamps the fast path does not understand, DateTimeFormatter is immutable and thread-safe
+     */
+    private static final DateTimeFormatter TIMESTAMP_FORMATTER = new DateTimeFormatterBuilder()
+            .appendPattern("yyyy-MM-dd'T'HH:mm:ss")
+            .optionalStart().appendFraction(ChronoField.NANO_OF_SECOND, 0, 9, true).optionalEnd()
+            .optionalStart().appendOffset("+HH:MM", "Z").optionalEnd()
+            .optionalStart().appendOffset("+HHMM", "Z").optionalEnd()
+            .toFormatter();
+
+    private RtrMessageParser() {
+    }
+
+    /**
+     * Parse the RTR message into the given RtrMessage
+     *
+     * @param message
+     * @param rtr
+     * @return false if the message is not a valid RTR message
+     */
+    public static boolean parse(String message, RtrMessage rtr) {
+        try {
+            if (!parseInternal(message, rtr)) {
+                log.error("Invalid RTR message: {}", message);
+                return false;
+            }
+        } catch (Exception e) {
+            log.error("Error parsing RTR message: {}", e.getMessage());
+            return false;
+        }
+
+        return true;
+    }
+
+    private static boolean parseInternal(String line, RtrMessage rtr) {
+        int len = line.length();
+
+        // host
+        int pos = skipSpaces(line, 0);
+        int end = indexOfOrEnd(line, ' ', pos);
+        if (end == len) {
+            return false;
+        }
+        rtr.setHost(line.substring(pos, end));
+
+        // timestamp
+        int open = line.indexOf('[', end);
+        int close = open < 0 ? -1 : line.indexOf(']', open);
+        if (close < 0) {
+            return false;
+        }
+        rtr.setTimestamp(decodeTimestamp(line, open + 1, close));
+
+        // method, path and protocol
+        open = line.indexOf('"', close);
+        close = open < 0 ? -1 : line.indexOf('"', open + 1);
+        if (close < 0) {
+            return false;
+        }
+        pos = skipSpaces(line, open + 1);
+        end = indexOfOrEnd(line, ' ', pos, close);
+        rtr.setMethod(line.substring(pos, end));
+        pos = skipSpaces(line, end, close);
+        end = indexOfOrEnd(line, ' ', pos, close);
+        rtr.setPath(line.substring(pos, end));
+        pos = skipSpaces(line, end, close);
+        end = indexOfOrEnd(line, ' ', pos, close);
+        rtr.setProtocol(line.substring(pos, end));
+
+        // status code, request bytes received, and body bytes sent
+        pos = skipSpaces(line, close + 1);
+        end = indexOfOrEnd(line, ' ', pos);
+        rtr.setStatusCode(line.substring(pos, end));
+        rtr.setSuccess(parseStatusCode(line, pos, end) < 400);
+        pos = skipSpaces(line, end);
+        end = indexOfOrEnd(line, ' ', pos);
+        rtr.setRequestBytesReceived(line.substring(pos, end));
+        pos = skipSpaces(line, end);
+        end = indexOfOrEnd(line, ' ', pos);
+        rtr.setBodyBytesSent(line.substring(pos, end));
+
+        // referer, user agent, remote address, dest ip and port
+        pos = end;
+        for (int field = 0; field < 4; field++) {
+            open = line.indexOf('"', pos);
+            close = open < 0 ? -1 : line.indexOf('"', open + 1);
+            if (close < 0) {
+                return false;
+            }
+            String value = line.substring(open + 1, close).trim();
+            switch (field) {
+                case 0:
+                    rtr.setReferer(value);
+                    break;
+                case 1:
+                    rtr.setUserAgent(value);
+                    break;
+                case 2:
+                    rtr.setRemoteAddr(value);
+                    break;
+                default:
+                    rtr.setDestIpAndPort(value);
+            }
+            pos = close + 1;
+        }
+
+        // key:"value" and key:value fields, in any order
+        String xForwardedProto = null;
+        while (true) {
+            pos = skipSpaces(line, pos);
+            if (pos >= len) {
+                break;
+            }
+            int colon = line.indexOf(':', pos);
+            if (colon < 0) {
+                break;
+            }
+            int keyStart = pos;
+            int keyEnd = colon;
+            int valueStart;
+            int valueEnd;
+            if (colon + 1 < len && line.charAt(colon + 1) == '"') {
+                valueStart = colon + 2;
+                valueEnd = line.indexOf('"', valueStart);
+                if (valueEnd < 0) {
+                    return false;
+                }
+                pos = valueEnd + 1;
+            } else {
+                valueStart = colon + 1;
+                valueEnd = indexOfOrEnd(line, ' ', valueStart);
+                pos = valueEnd;
+            }
+
+            if (keyEquals(line, keyStart, keyEnd, X_FORWARDED_FOR)) {
+                int comma = indexOfOrEnd(line, ',', valueStart, valueEnd);
+                rtr.setXForwardedFor(line.substring(valueStart, comma).trim());
+            } else if (keyEquals(line, keyStart, keyEnd, X_FORWARDED_PROTO)) {
+                xForwardedProto = line.substring(valueStart, valueEnd).trim();
+            } else if (keyEquals(line, keyStart, keyEnd, VCAP_REQUEST_ID)) {
+                rtr.setVcapRequestId(line.substring(valueStart, valueEnd).trim());
+            } else if (keyEquals(line, keyStart, keyEnd, RESPONSE_TIME)) {
+                float responseTime = Float.parseFloat(line.substring(valueStart, valueEnd));
+                // millisecond
+                rtr.setResponseTime((long) (responseTime * 1000));
+            } else if (keyEquals(line, keyStart, keyEnd, APP_ID)) {
+                rtr.setAppId(line.substring(valueStart, valueEnd).trim());
+            } else if (keyEquals(line, keyStart, keyEnd, APP_INDEX)) {
+                rtr.setAppIndex(line.substring(valueStart, valueEnd).trim());
+            }
+        }
+
+        if (rtr.getXForwardedFor() == null) {
+            log.error("Error parsing x_forwarded_for: {}", line);
+            return false;
+        }
+
+        if ("http".equals(xForwardedProto)) {
+            rtr.setXForwardedProto("http");
+        } else if ("https".equals(xForwardedProto)) {
+            rtr.setXForwardedProto("https");
+        } else {
+            log.error("Error parsing x_forwarded_proto: {}", xForwardedProto);
+            return false;
+        }
+
+        if (rtr.getVcapRequestId() == null) {
+            log.error("Error parsing vcap_request_id: {}", line);
+        }
+        if (rtr.getResponseTime() == null) {
+            log.error("Error parsing response time: {}", line);
+        }
+        if (rtr.getAppId() == null) {
+            log.error("Error parsing app id: {}", line);
+        }
+        if (rtr.getAppIndex() == null) {
+            log.error("Error parsing app index: {}", line);
+        }
+
+        return true;
+    }
+
+    /**
+     * Decode timestamps of the form yyyy-MM-dd'T'HH:mm:ss[.fraction](Z|+HHMM|+HH:MM) without intermediate objects,
+     * anything else is handed over to the cached formatter
+     *
+     * @param s
+     * @param start
+     * @param end
+     * @return
+     */
+    static Date decodeTimestamp(String s, int start, int end) {
+        if (end - start >= 20 && s.charAt(start + 4) == '-' && s.charAt(start + 7) == '-' && s.charAt(start + 10) == 'T'
+                && s.charAt(start + 13) == ':' && s.charAt(start + 16) == ':') {
+            int year = digits(s, start, 4);
+            int month = digits(s, start + 5, 2);
+            int day = digits(s, start + 8, 2);
+            int hour = digits(s, start + 11, 2);
+            int minute = digits(s, start + 14, 2);
+            int second = digits(s, start + 17, 2);
+
+            int pos = start + 19;
+            int millis = 0;
+            if (s.charAt(pos) == '.') {
+                pos++;
+                int scale = 100;
+                while (pos < end && Character.isDigit(s.charAt(pos))) {
+                    millis += (s.charAt(pos) - '0') * scale;
+                    scale /= 10;
+                    pos++;
+                }
+            }
+
+            int offsetSeconds = Integer.MIN_VALUE;
+            if (pos == end - 1 && s.charAt(pos) == 'Z') {
+                offsetSeconds = 0;
+            } else if (end - pos >= 5 && (s.charAt(pos) == '+' || s.charAt(pos) == '-')) {
+                int sign = s.charAt(pos) == '-' ? -1 : 1;
+                int offsetHours = digits(s, pos + 1, 2);
+                int offsetMinutes = -1;
+                if (end - pos == 5) {
+                    offsetMinutes = digits(s, pos + 3, 2);
+                } else if (end - pos == 6 && s.charAt(pos + 3) == ':') {
+                    offsetMinutes = digits(s, pos + 4, 2);
+                }
+                if (offsetHours >= 0 && offsetMinutes >= 0) {
+                    offsetSeconds = sign * (offsetHours * 3600 + offsetMinutes * 60);
+                }
+            }
+
+            if (year >= 0 && month > 0 && day > 0 && hour >= 0 && minute >= 0 && second >= 0
+                    && offsetSeconds != Integer.MIN_VALUE) {
+                long epochSecond = daysFromCivil(year, month, day) * 86400L + hour * 3600L + minute * 60L + second - offsetSeconds;
+                return new Date(epochSecond * 1000 + millis);
+            }
+        }
+
+        return Date.from(OffsetDateTime.parse(s.substring(start, end), TIMESTAMP_FORMATTER).toInstant());
+    }
+
+    /**
+     * Days since 1970-01-01 of a proleptic Gregorian date
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yoe = y - era * 400;
+        int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097L + doe - 719468;
+    }
+
+    /**
+     * @return the value of the digits, or -1 if a character is not a digit
+     */
+    private static int digits(String s, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static int parseStatusCode(String s, int start, int end) {
+        int code = end - start == 3 ? digits(s, start, 3) : -1;
+        if (code < 0) {
+            throw new NumberFormatException("Invalid status code: " + s.substring(start, end));
+        }
+        return code;
+    }
+
+    private static boolean keyEquals(String s, int start, int end, String key) {
+        return end - start == key.length() && s.regionMatches(start, key, 0, key.length());
+    }
+
+    private static int skipSpaces(String s, int pos) {
+        return skipSpaces(s, pos, s.length());
+    }
+
+    private static int skipSpaces(String s, int pos, int limit) {
+        while (pos < limit && s.charAt(pos) == ' ') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int indexOfOrEnd(String s, char c, int from) {
+        return indexOfOrEnd(s, c, from, s.length());
+    }
+
+    private static int indexOfOrEnd(String s, char c, int from, int limit) {
+        int i = s.indexOf(c, from);
+        return (i < 0 || i > limit) ? limit : i;
+    }
+}
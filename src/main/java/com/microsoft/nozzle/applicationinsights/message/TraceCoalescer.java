@@ -0,0 +1,203 @@
+package com.microsoft.nozzle.applicationinsights.message;
+
+import com.microsoft.nozzle.applicationinsights.config.NozzleProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.doppler.MessageType;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Merges the lines of a multi-line log entry, such as a stack trace, into one trace
+ * <p>
+ * Lines are grouped by app, source instance and message type. A line matching the continuation pattern is appended to
+ * the pending trace of its group, any other line flushes the pending trace and starts a new one. A pending trace is
+ * also flushed once it is older than the window, or when the next line would take it above the length limit, so the
+ * state of a group is at most one trace of the length limit, and a group without pending trace has no state.
+ */
+@Slf4j
+public class TraceCoalescer {
+
+    private final long windowNanos;
+    private final int maxChars;
+    private final Pattern continuation;
+    private final TraceConsumer consumer;
+    private final String dispatchMode;
+
+    private final Map<Key, Pending> pending = new ConcurrentHashMap<Key, Pending>();
+
+    private Thread flusher;
+    private volatile boolean running = false;
+
+    /**
+     * @param properties
+     * @param consumer   receives the coalesced traces, from the thread adding the next line of the group or from the
+     *                   flusher thread
+     */
+    public TraceCoalescer(NozzleProperties properties, TraceConsumer consumer) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(properties.getTraceCoalesceWindowMillis());
+        this.maxChars = Math.max(1, properties.getTraceCoalesceMaxChars());
+        this.continuation = Pattern.compile(properties.getTraceContinuationPattern());
+        this.consumer = consumer;
+        this.dispatchMode = properties.getDispatchMode();
+    }
+
+    /**
+     * @return whether a coalescing window is configured
+     */
+    public boolean isEnabled() {
+        return windowNanos > 0;
+    }
+
+    /**
+     * Start the thread flushing the traces older than the window
+     */
+    public void start() {
+        if (!isEnabled() || running) {
+            return;
+        }
+        running = true;
+        flusher = new Thread(this::flushExpired, "trace-coalescer");
+        flusher.setDaemon(true);
+        flusher.start();
+        log.info("Coalescing trace lines within {} ms, up to {} characters", TimeUnit.NANOSECONDS.toMillis(windowNanos), maxChars);
+        if (!"ordered".equalsIgnoreCase(dispatchMode)) {
+            log.warn("Trace lines are coalesced with the {} dispatch mode, where the lines of an instance are routed by "
+                    + "several threads and may be merged out of order, set DISPATCH_MODE=ordered to keep them in order", dispatchMode);
+        }
+    }
+
+    /**
+     * Stop the flusher thread and flush all pending traces
+     */
+    public void stop() {
+        running = false;
+        if (flusher != null) {
+            flusher.interrupt();
+            flusher = null;
+        }
+        for (Key key : pending.keySet()) {
+            Pending trace = pending.remove(key);
+            if (trace != null) {
+                emit(trace);
+            }
+        }
+    }
+
+    /**
+     * Add a line, flushing the pending trace of its group if the line does not continue it
+     *
+     * @param appId
+     * @param instanceId
+     * @param messageType
+     * @param line
+     */
+    public void add(String appId, String instanceId, MessageType messageType, String line) {
+        long now = System.nanoTime();
+        boolean continues = continuation.matcher(line).lookingAt();
+        Pending[] flushed = new Pending[1];
+
+        pending.compute(new Key(appId, instanceId, messageType), (key, current) -> {
+            if (current != null && continues && now - current.startNanos < windowNanos
+                    && current.text.length() + 1 + line.length() <= maxChars) {
+                current.append(line);
+                return current;
+            }
+            flushed[0] = current;
+            return new Pending(key, line, now);
+        });
+
+        if (flushed[0] != null) {
+            emit(flushed[0]);
+        }
+    }
+
+    private void flushExpired() {
+        long interval = Math.max(1, TimeUnit.NANOSECONDS.toMillis(windowNanos) / 4);
+        while (running) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            long now = System.nanoTime();
+            pending.forEach((key, trace) -> {
+                // Not removed if a line meanwhile flushed it and started a new trace
+                if (now - trace.startNanos >= windowNanos && pending.remove(key, trace)) {
+                    emit(trace);
+                }
+            });
+        }
+    }
+
+    private void emit(Pending trace) {
+        try {
+            consumer.accept(trace.key.appId, trace.key.instanceId, trace.key.messageType, trace.text.toString(), trace.lines);
+        } catch (Exception e) {
+            log.error("Error sending coalesced trace: {}", e.getMessage(), e);
+        }
+    }
+
+    @FunctionalInterface
+    public interface TraceConsumer {
+        void accept(String appId, String instanceId, MessageType messageType, String message, int lineCount);
+    }
+
+    /**
+     * Trace being coalesced, only modified within the compute of its group
+     */
+    private static final class Pending {
+        private final Key key;
+        private final StringBuilder text;
+        private final long startNanos;
+        private int lines = 1;
+
+        private Pending(Key key, String line, long startNanos) {
+            this.key = key;
+            this.text = new StringBuilder(line);
+            this.startNanos = startNanos;
+        }
+
+        private void append(String line) {
+            text.append('\n').append(line);
+            lines++;
+        }
+    }
+
+    private static final class Key {
+        private final String appId;
+        private final String instanceId;
+        private final MessageType messageType;
+        private final int hash;
+
+        private Key(String appId, String instanceId, MessageType messageType) {
+            this.appId = appId;
+            this.instanceId = instanceId;
+            this.messageType = messageType;
+            this.hash = Objects.hash(appId, instanceId, messageType);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return Objects.equals(appId, other.appId) && Objects.equals(instanceId, other.instanceId)
+                    && messageType == other.messageType;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -3,10 +3,22 @@ package com.microsoft.nozzle.applicationinsights.message;
 import org.cloudfoundry.doppler.MessageType;
 import lombok.Data;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 @Data
 public class TraceMessage extends BaseMessage {
 
     private String message;
 
     private MessageType messageType;
+
+    // number of log lines merged into the message
+    private int lineCount = 1;
+
+    // Level of a JSON log line, null if not set
+    private String level;
+
+    // Fields lifted from a JSON log line, sent as telemetry properties
+    private final Map<String, String> properties = new LinkedHashMap<String, String>();
 }
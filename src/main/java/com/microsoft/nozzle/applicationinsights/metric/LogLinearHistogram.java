@@ -0,0 +1,136 @@
+package com.microsoft.nozzle.applicationinsights.metric;
+
+/**
+ * Fixed-size histogram of non-negative values, with log-linear buckets
+ * <p>
+ * Each power of two between 2^-8 and 2^48 is split into 16 linear buckets, so a percentile is estimated within about
+ * 3% whatever the magnitude of the values, in under 4 KB. Values below 2^-8 fall into a zero bucket, negative values
+ * are counted as zero, and values at or above 2^48 fall into the last bucket, just below 2^48. The mean and variance
+ * are kept with Welford's algorithm, and merged with the parallel variant of Chan et al., so they stay precise for large
+ * values and many samples.
+ * <p>
+ * Not thread-safe.
+ */
+public class LogLinearHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int MIN_EXPONENT = -8;
+
+    private static final int MAX_EXPONENT = 47;
+
+    private static final int BUCKETS = 1 + (MAX_EXPONENT - MIN_EXPONENT + 1) * SUB_BUCKETS;
+
+    private static final double MIN_VALUE = Math.scalb(1.0, MIN_EXPONENT);
+
+    private final int[] counts = new int[BUCKETS];
+
+    private long count;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private double mean;
+    private double m2;
+
+    public void record(double value) {
+        counts[bucketOf(value)]++;
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+    }
+
+    /**
+     * Add the values of another histogram
+     *
+     * @param other
+     */
+    public void merge(LogLinearHistogram other) {
+        if (other.count == 0) {
+            return;
+        }
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        long total = count + other.count;
+        double delta = other.mean - mean;
+        m2 += other.m2 + delta * delta * ((double) count * other.count / total);
+        mean += delta * other.count / total;
+        count = total;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    private static int bucketOf(double value) {
+        if (!(value >= MIN_VALUE)) {
+            return 0;
+        }
+        int exponent = Math.getExponent(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) ((Math.scalb(value, -exponent) - 1.0) * SUB_BUCKETS);
+        return 1 + (exponent - MIN_EXPONENT) * SUB_BUCKETS + Math.min(subBucket, SUB_BUCKETS - 1);
+    }
+
+    /**
+     * @return the middle of the bucket
+     */
+    private static double valueOf(int bucket) {
+        if (bucket == 0) {
+            return 0;
+        }
+        int exponent = (bucket - 1) / SUB_BUCKETS + MIN_EXPONENT;
+        int subBucket = (bucket - 1) % SUB_BUCKETS;
+        return Math.scalb(1.0 + (subBucket + 0.5) / SUB_BUCKETS, exponent);
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the estimated value, within the min and max, 0 if the histogram is empty
+     */
+    public double getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.max(min, Math.min(max, valueOf(i)));
+            }
+        }
+        return max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public double getMax() {
+        return count == 0 ? 0 : max;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getSum() {
+        return mean * count;
+    }
+
+    /**
+     * @return the population variance
+     */
+    public double getVariance() {
+        return count == 0 ? 0 : m2 / count;
+    }
+}
@@ -0,0 +1,206 @@
+package com.microsoft.nozzle.applicationinsights.metric;
+
+import com.microsoft.nozzle.applicationinsights.message.CustomMetric;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Aggregates metric data points without locking on the tracking path
+ * <p>
+ * Data points go to striped accumulators in the current buffer. {@link #drain()} swaps in an empty buffer, waits for the
+ * writers still holding the old buffer to finish, and returns its aggregates, with the same count, min, max, sum and
+ * sum of squares as {@link CustomMetric#trackValue(double)}. The writers of a buffer are counted on stripes selected by
+ * thread, each on its own cache line, so the tracking threads do not contend on one counter. Series whose metric is flagged as histogram are aggregated
+ * into a {@link LogLinearHistogram} instead, for percentiles and a numerically stable variance in constant memory.
+ */
+public class MetricAggregator {
+
+    // Power of two above the number of processors, so the dispatcher threads rarely share a stripe
+    static final int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1) << 1;
+
+    // Longs between two writer stripes, 128 bytes so two stripes are never on the same or adjacent cache lines
+    private static final int STRIPE_PADDING = 16;
+
+    private volatile Buffer current = new Buffer();
+
+    /**
+     * @return the stripe of the current thread, the same on every call of a thread
+     */
+    static int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) (id ^ (id >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * Aggregate the data point
+     *
+     * @param key     the metric series
+     * @param value
+     * @param factory creates the metric holding the metadata of a series seen for the first time in the interval
+     */
+    public void track(MetricKey key, double value, Function<MetricKey, CustomMetric> factory) {
+        int writer = stripe() * STRIPE_PADDING;
+        Buffer buffer = acquire(writer);
+        try {
+            Accumulator accumulator = buffer.accumulators.get(key);
+            if (accumulator == null) {
+                accumulator = buffer.accumulators.computeIfAbsent(key, k -> newAccumulator(factory.apply(k)));
+            }
+            accumulator.add(value);
+        } finally {
+            buffer.writers.decrementAndGet(writer);
+        }
+    }
+
+    /**
+     * Take the metrics aggregated since the previous drain
+     *
+     * @return
+     */
+    public synchronized List<CustomMetric> drain() {
+        Buffer drained = current;
+        current = new Buffer();
+
+        while (drained.hasWriters()) {
+            Thread.yield();
+        }
+
+        List<CustomMetric> metrics = new ArrayList<CustomMetric>(drained.accumulators.size());
+        for (Accumulator accumulator : drained.accumulators.values()) {
+            metrics.add(accumulator.toMetric());
+        }
+        return metrics;
+    }
+
+    /**
+     * Register as a writer of the current buffer. The buffer is read again after registering, so a writer either
+     * registered before the swap and is waited for, or retries with the new buffer.
+     *
+     * @param writer index of the writer stripe of the thread
+     */
+    private Buffer acquire(int writer) {
+        while (true) {
+            Buffer buffer = current;
+            buffer.writers.incrementAndGet(writer);
+            if (buffer == current) {
+                return buffer;
+            }
+            buffer.writers.decrementAndGet(writer);
+        }
+    }
+
+    private static final class Buffer {
+        private final ConcurrentMap<MetricKey, Accumulator> accumulators = new ConcurrentHashMap<MetricKey, Accumulator>();
+        // Writers per stripe, a registered writer keeps its stripe positive so the sum is never zero while it writes
+        private final AtomicLongArray writers = new AtomicLongArray(STRIPES * STRIPE_PADDING);
+
+        private boolean hasWriters() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += writers.get(i * STRIPE_PADDING);
+            }
+            return sum != 0;
+        }
+    }
+
+    private static Accumulator newAccumulator(CustomMetric metric) {
+        return metric.isHistogram() ? new HistogramAccumulator(metric) : new StatisticsAccumulator(metric);
+    }
+
+    private abstract static class Accumulator {
+        final CustomMetric metric;
+
+        Accumulator(CustomMetric metric) {
+            this.metric = metric;
+        }
+
+        abstract void add(double value);
+
+        abstract CustomMetric toMetric();
+    }
+
+    private static final class StatisticsAccumulator extends Accumulator {
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+        private final DoubleAdder sumOfSquares = new DoubleAdder();
+        private final DoubleAccumulator min = new DoubleAccumulator(Math::min, Double.POSITIVE_INFINITY);
+        private final DoubleAccumulator max = new DoubleAccumulator(Math::max, Double.NEGATIVE_INFINITY);
+
+        private StatisticsAccumulator(CustomMetric metric) {
+            super(metric);
+        }
+
+        @Override
+        void add(double value) {
+            min.accumulate(value);
+            max.accumulate(value);
+            sum.add(value);
+            sumOfSquares.add(value * value);
+            count.increment();
+        }
+
+        @Override
+        CustomMetric toMetric() {
+            metric.setCount((int) count.sum());
+            metric.setMin(min.get());
+            metric.setMax(max.get());
+            metric.setSum(sum.sum());
+            metric.setSumOfSquares(sumOfSquares.sum());
+            return metric;
+        }
+    }
+
+    /**
+     * Values of a series go to one histogram per writer stripe, created on first use, so the threads tracking the same
+     * series, e.g. a request duration, do not contend on one lock. The histograms are merged when the buffer is drained.
+     */
+    private static final class HistogramAccumulator extends Accumulator {
+        private final AtomicReferenceArray<LogLinearHistogram> histograms = new AtomicReferenceArray<LogLinearHistogram>(STRIPES);
+
+        private HistogramAccumulator(CustomMetric metric) {
+            super(metric);
+        }
+
+        @Override
+        void add(double value) {
+            int stripe = stripe();
+            LogLinearHistogram histogram = histograms.get(stripe);
+            if (histogram == null) {
+                histograms.compareAndSet(stripe, null, new LogLinearHistogram());
+                histogram = histograms.get(stripe);
+            }
+            // Only contended by the threads sharing the stripe
+            synchronized (histogram) {
+                histogram.record(value);
+            }
+        }
+
+        @Override
+        CustomMetric toMetric() {
+            LogLinearHistogram merged = new LogLinearHistogram();
+            for (int i = 0; i < STRIPES; i++) {
+                LogLinearHistogram histogram = histograms.get(i);
+                if (histogram != null) {
+                    synchronized (histogram) {
+                        merged.merge(histogram);
+                    }
+                }
+            }
+            metric.setCount((int) merged.getCount());
+            metric.setMin(merged.getMin());
+            metric.setMax(merged.getMax());
+            metric.setSum(merged.getSum());
+            metric.setDistribution(merged);
+            return metric;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.microsoft.nozzle.applicationinsights.metric;
+
+import java.util.Arrays;
+
+/**
+ * Identifies an aggregated metric series: metric name, app id, instance and optional dimensions
+ */
+public final class MetricKey {
+
+    private final String name;
+
+    private final String applicationId;
+
+    private final String instanceId;
+
+    // Dimension names and values, alternating
+    private final String[] dimensions;
+
+    private final int hash;
+
+    private static final String[] NO_DIMENSIONS = new String[0];
+
+    public MetricKey(String name, String applicationId, String instanceId) {
+        this(name, applicationId, instanceId, NO_DIMENSIONS);
+    }
+
+    /**
+     * @param name
+     * @param applicationId
+     * @param instanceId
+     * @param dimensions    dimension names and values, alternating
+     */
+    public MetricKey(String name, String applicationId, String instanceId, String... dimensions) {
+        this.name = name;
+        this.applicationId = applicationId;
+        this.instanceId = instanceId;
+        this.dimensions = dimensions;
+
+        int h = name.hashCode();
+        h = 31 * h + (applicationId == null ? 0 : applicationId.hashCode());
+        h = 31 * h + (instanceId == null ? 0 : instanceId.hashCode());
+        h = 31 * h + Arrays.hashCode(dimensions);
+        this.hash = h;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getApplicationId() {
+        return applicationId;
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    public int getDimensionCount() {
+        return dimensions.length / 2;
+    }
+
+    public String getDimensionName(int i) {
+        return dimensions[2 * i];
+    }
+
+    public String getDimensionValue(int i) {
+        return dimensions[2 * i + 1];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MetricKey)) {
+            return false;
+        }
+        MetricKey other = (MetricKey) o;
+        return hash == other.hash
+                && name.equals(other.name)
+                && (applicationId == null ? other.applicationId == null : applicationId.equals(other.applicationId))
+                && (instanceId == null ? other.instanceId == null : instanceId.equals(other.instanceId))
+                && Arrays.equals(dimensions, other.dimensions);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return name + ", app: " + applicationId + ", instance: " + instanceId
+                + (dimensions.length == 0 ? "" : ", dimensions: " + Arrays.toString(dimensions));
+    }
+}
@@ -0,0 +1,195 @@
+package com.microsoft.nozzle.applicationinsights.nozzle;
+
+import com.microsoft.nozzle.applicationinsights.cache.AppDataCache;
+import com.microsoft.nozzle.applicationinsights.cache.AppMetadata;
+import com.microsoft.nozzle.applicationinsights.config.ApplicationConfig;
+import com.microsoft.nozzle.applicationinsights.config.TelemetryType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolve the sender and config of an app, selected by its id or by the organization, space and app name patterns of
+ * the application configs
+ * <p>
+ * The senders, ignored telemetry types and routes of a routing config are published together as one immutable
+ * {@link RoutingTable}, so an envelope routed with a table never sees the ignored types of another config, or a sender
+ * of a removed instrumentation key. The route of each app, including "not monitored", is computed once from the
+ * {@link AppDataCache} and cached in the table, so an envelope costs one hash lookup. The cached route of an app is
+ * computed again when the cache publishes a change of its metadata, e.g. the app is moved to another space, or is first
+ * found in the Cloud Controller.
+ */
+public class AppSenderResolver {
+
+    /**
+     * Route of the apps that are not monitored
+     */
+    public static final Route NOT_MONITORED = new Route(null, null);
+
+    private final AppDataCache appDataCache;
+
+    // Replaced as a whole with its cached routes when the routing config changes
+    private volatile RoutingTable table;
+
+    public AppSenderResolver(AppDataCache appDataCache) {
+        this.appDataCache = appDataCache;
+        this.table = new RoutingTable(Collections.emptyMap(), Collections.emptySet(), Collections.emptyMap(),
+                Collections.emptyList());
+        appDataCache.addChangeListener(appId -> table.resolved.remove(appId));
+    }
+
+    /**
+     * Replace the routing table
+     *
+     * @param senders            senders per instrumentation key
+     * @param ignoredTelemetries
+     * @param routesById         routes of the apps selected by id
+     * @param scopedRoutes       routes of the configs selecting apps by name patterns, the first matching one is used
+     */
+    void setRoutes(Map<String, ApplicationInsightsSender> senders, Set<TelemetryType> ignoredTelemetries,
+                   Map<String, Route> routesById, List<Route> scopedRoutes) {
+        table = new RoutingTable(senders, ignoredTelemetries, routesById, scopedRoutes);
+    }
+
+    /**
+     * @return the current routing table, to route an envelope with a consistent config
+     */
+    public RoutingTable getTable() {
+        return table;
+    }
+
+    /**
+     * Get the route of an app in the current routing table
+     *
+     * @param appId
+     * @return {@link #NOT_MONITORED} if the app is not monitored
+     */
+    public Route resolve(String appId) {
+        return table.resolve(appId);
+    }
+
+    /**
+     * Get the sender of an app in the current routing table
+     *
+     * @param appId
+     * @return null if the app is not monitored
+     */
+    public ApplicationInsightsSender getSender(String appId) {
+        return resolve(appId).getSender();
+    }
+
+    public boolean isMonitored(String appId) {
+        return resolve(appId) != NOT_MONITORED;
+    }
+
+    /**
+     * @return the number of apps whose route is cached
+     */
+    public int getResolvedCount() {
+        return table.resolved.size();
+    }
+
+    /**
+     * Sender and config of a monitored app
+     */
+    public static final class Route {
+        private final ApplicationInsightsSender sender;
+        private final ApplicationConfig config;
+
+        Route(ApplicationInsightsSender sender, ApplicationConfig config) {
+            this.sender = sender;
+            this.config = config;
+        }
+
+        public ApplicationInsightsSender getSender() {
+            return sender;
+        }
+
+        public ApplicationConfig getConfig() {
+            return config;
+        }
+    }
+
+    /**
+     * Immutable senders, ignored telemetry types and routes of a routing config, and the routes computed from them per
+     * app id
+     */
+    public final class RoutingTable {
+        private final Map<String, ApplicationInsightsSender> senders;
+        private final Set<TelemetryType> ignoredTelemetries;
+        private final Map<String, Route> routesById;
+        private final List<Route> scopedRoutes;
+        private final Map<String, Route> resolved = new ConcurrentHashMap<String, Route>();
+
+        private RoutingTable(Map<String, ApplicationInsightsSender> senders, Set<TelemetryType> ignoredTelemetries,
+                             Map<String, Route> routesById, List<Route> scopedRoutes) {
+            this.senders = Collections.unmodifiableMap(new HashMap<String, ApplicationInsightsSender>(senders));
+            this.ignoredTelemetries = ignoredTelemetries;
+            this.routesById = Collections.unmodifiableMap(new HashMap<String, Route>(routesById));
+            this.scopedRoutes = Collections.unmodifiableList(new ArrayList<Route>(scopedRoutes));
+        }
+
+        /**
+         * @return the senders per instrumentation key
+         */
+        public Map<String, ApplicationInsightsSender> getSenders() {
+            return senders;
+        }
+
+        public boolean isIgnored(TelemetryType telemetryType) {
+            return ignoredTelemetries.contains(telemetryType);
+        }
+
+        /**
+         * Get the route of an app
+         *
+         * @param appId
+         * @return {@link #NOT_MONITORED} if the app is not monitored
+         */
+        public Route resolve(String appId) {
+            if (appId == null) {
+                return NOT_MONITORED;
+            }
+            Route route = resolved.get(appId);
+            if (route == null) {
+                // Locks the entry, so a change of the metadata during the computation removes the result. A route
+                // computed without the complete metadata of the app is not cached, it is computed again until the
+                // metadata is known
+                route = resolved.computeIfAbsent(appId, this::compute);
+                if (route == null) {
+                    return NOT_MONITORED;
+                }
+            }
+            return route;
+        }
+
+        /**
+         * @return null if the app cannot be resolved until its metadata is complete
+         */
+        private Route compute(String appId) {
+            Route route = routesById.get(appId);
+            if (route != null) {
+                return route;
+            }
+            if (scopedRoutes.isEmpty()) {
+                return NOT_MONITORED;
+            }
+            // Not monitored until the metadata of the app is published, e.g. after a failed lookup is retried
+            AppMetadata metadata = appDataCache.getOrLookupAppMetadata(appId);
+            if (!AppDataCache.isComplete(metadata)) {
+                return null;
+            }
+            for (Route scoped : scopedRoutes) {
+                if (scoped.getConfig().matches(metadata)) {
+                    return scoped;
+                }
+            }
+            return NOT_MONITORED;
+        }
+    }
+}
@@ -1,17 +1,24 @@
 package com.microsoft.nozzle.applicationinsights.nozzle;
 
 import com.microsoft.applicationinsights.TelemetryClient;
+import com.microsoft.applicationinsights.TelemetryConfiguration;
+import com.microsoft.applicationinsights.channel.TelemetryChannel;
 import com.microsoft.applicationinsights.telemetry.*;
+import com.microsoft.nozzle.applicationinsights.config.TelemetryType;
 import com.microsoft.nozzle.applicationinsights.message.CustomMetric;
 import com.microsoft.nozzle.applicationinsights.message.EventMessage;
 import com.microsoft.nozzle.applicationinsights.message.RtrMessage;
 import com.microsoft.nozzle.applicationinsights.message.TraceMessage;
+import com.microsoft.nozzle.applicationinsights.metric.LogLinearHistogram;
+import com.microsoft.nozzle.applicationinsights.metric.MetricAggregator;
+import com.microsoft.nozzle.applicationinsights.metric.MetricKey;
 import lombok.extern.slf4j.Slf4j;
 
 import java.net.MalformedURLException;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
 /**
  * Sends telemetries to Application Insights
@@ -19,13 +26,33 @@ import java.util.concurrent.locks.ReentrantLock;
 @Slf4j
 public class ApplicationInsightsSender {
 
-    private TelemetryClient telemetryClient = new TelemetryClient();
-    // key is Metric name + app id + instance index
-    private final Map<String, CustomMetric> metricMap = new HashMap<String, CustomMetric>();
-    private final ReentrantLock lock = new ReentrantLock();
+    private final TelemetryClient telemetryClient;
+    private final TelemetryChannel channel;
+    private final MetricAggregator metricAggregator = new MetricAggregator();
+    private final LongAdder[] sent = new LongAdder[TelemetryType.values().length];
     private boolean enabled = true;
 
-    public ApplicationInsightsSender(String instrumentationKey) {
+    /**
+     * Create a sender with its own telemetry configuration and channel, so the telemetries of different instrumentation
+     * keys are batched and transmitted separately
+     *
+     * @param instrumentationKey
+     * @param channel
+     */
+    public ApplicationInsightsSender(String instrumentationKey, TelemetryChannel channel) {
+        this.channel = channel;
+        for (int i = 0; i < sent.length; i++) {
+            sent[i] = new LongAdder();
+        }
+
+        TelemetryConfiguration configuration = TelemetryConfiguration.createDefault();
+        TelemetryChannel defaultChannel = configuration.getChannel();
+        configuration.setChannel(channel);
+        if (defaultChannel != null) {
+            defaultChannel.stop(0, TimeUnit.SECONDS);
+        }
+        telemetryClient = new TelemetryClient(configuration);
+
         telemetryClient.getContext().setInstrumentationKey(instrumentationKey);
         String iKey = telemetryClient.getContext().getInstrumentationKey();
         if (iKey == null) {
@@ -38,6 +65,29 @@ public class ApplicationInsightsSender {
         return enabled;
     }
 
+    public String getInstrumentationKey() {
+        return telemetryClient.getContext().getInstrumentationKey();
+    }
+
+    /**
+     * @param type
+     * @return the number of telemetries of the type sent to the channel
+     */
+    public long getSentCount(TelemetryType type) {
+        return sent[type.ordinal()].sum();
+    }
+
+    /**
+     * Send the aggregated metrics and the batched telemetries, then stop the channel
+     *
+     * @param timeout
+     * @param unit
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        sendMetrics();
+        channel.stop(timeout, unit);
+    }
+
     /**
      * Send Request telemetry to Application Insights
      *
@@ -72,6 +122,7 @@ public class ApplicationInsightsSender {
 
         log.debug("Sending Request telemetry: {}", name);
         telemetryClient.track(telem);
+        sent[TelemetryType.HTTP_REQUEST.ordinal()].increment();
     }
 
     /**
@@ -107,59 +158,98 @@ public class ApplicationInsightsSender {
             default:
                 log.error("Error: unknown message type: {}", msg.getMessageType());
         }
+        if (msg.getLevel() != null) {
+            level = toSeverityLevel(msg.getLevel(), level);
+        }
 
         TraceTelemetry telem = new TraceTelemetry(msg.getMessage(), level);
 
+        // The nozzle properties below take precedence over the fields of the same name of a JSON log line
+        telem.getContext().getProperties().putAll(msg.getProperties());
         setTelemetryProperty(telem, "source_instance", msg.getInstanceId());
         setTelemetryProperty(telem, "app_name", msg.getApplicationName());
         setTelemetryProperty(telem, "space_name", msg.getSpaceName());
         setTelemetryProperty(telem, "org_name", msg.getOrganizationName());
         setTelemetryProperty(telem, "app_id", msg.getApplicationId());
+        if (msg.getLineCount() > 1) {
+            setTelemetryProperty(telem, "line_count", String.valueOf(msg.getLineCount()));
+        }
 
         log.debug("Sending Trace telemetry: {}", msg.getMessage());
         telemetryClient.track(telem);
+        sent[TelemetryType.TRACE.ordinal()].increment();
     }
 
     /**
-     * Aggregate the metric data points, to reduce the cost and performance overhead by sending fewer data points to Application Insights
+     * Map the level of a JSON log line, a name or a Bunyan / Pino number, to a severity level
      *
-     * @param metric
+     * @param level
+     * @param defaultLevel returned for an unknown level
+     * @return
      */
-    public void trackMetric(CustomMetric metric, double value) {
-        log.trace("Track Metric telemetry, name: {}, value: {}", metric.getName(), value);
-        String key = metric.getName() + metric.getApplicationId() + metric.getInstanceId();
-
-        lock.lock();
-        try {
-            if (!metricMap.containsKey(key)) {
-                metricMap.put(key, metric);
-            }
-            metricMap.get(key).trackValue(value);
-        } finally {
-            lock.unlock();
+    private static SeverityLevel toSeverityLevel(String level, SeverityLevel defaultLevel) {
+        switch (level.toLowerCase()) {
+            case "trace":
+            case "debug":
+            case "verbose":
+            case "finest":
+            case "finer":
+            case "fine":
+            case "10":
+            case "20":
+                return SeverityLevel.Verbose;
+            case "info":
+            case "information":
+            case "notice":
+            case "config":
+            case "30":
+                return SeverityLevel.Information;
+            case "warn":
+            case "warning":
+            case "40":
+                return SeverityLevel.Warning;
+            case "error":
+            case "err":
+            case "severe":
+            case "50":
+                return SeverityLevel.Error;
+            case "fatal":
+            case "critical":
+            case "crit":
+            case "panic":
+            case "emergency":
+            case "alert":
+            case "60":
+                return SeverityLevel.Critical;
+            default:
+                return defaultLevel;
         }
     }
 
+    /**
+     * Aggregate the metric data points, to reduce the cost and performance overhead by sending fewer data points to Application Insights
+     *
+     * @param key     metric name, app id and instance index
+     * @param value
+     * @param factory creates the metric with the app metadata when the series is first seen in the interval
+     */
+    public void trackMetric(MetricKey key, double value, Function<MetricKey, CustomMetric> factory) {
+        log.trace("Track Metric telemetry, name: {}, value: {}", key.getName(), value);
+        metricAggregator.track(key, value, factory);
+    }
+
     /**
      * Send Metric telemetry to Application Insights
      */
     public void sendMetrics() {
-        Map<String, CustomMetric> currentMap = new HashMap<String, CustomMetric>();
-        lock.lock();
-        try {
-            currentMap.putAll(metricMap);
-            metricMap.clear();
-        } finally {
-            lock.unlock();
-        }
-
-        for (CustomMetric metric : currentMap.values()) {
+        for (CustomMetric metric : metricAggregator.drain()) {
             MetricTelemetry telem = new MetricTelemetry(metric.getName(), metric.getSum());
             telem.setCount(metric.getCount());
             telem.setMax(metric.getMax());
             telem.setMin(metric.getMin());
             telem.setStandardDeviation(metric.getStandardDeviation());
 
+            telem.getContext().getProperties().putAll(metric.getProperties());
             setTelemetryProperty(telem, "instance_index", metric.getInstanceId());
             setTelemetryProperty(telem, "app_name", metric.getApplicationName());
             setTelemetryProperty(telem, "space_name", metric.getSpaceName());
@@ -168,9 +258,53 @@ public class ApplicationInsightsSender {
 
             log.debug("Sending Metric telemetry: {}, app: {}, instance: {}", metric.getName(), metric.getApplicationName(), metric.getInstanceId());
             telemetryClient.track(telem);
+            sent[TelemetryType.METRIC.ordinal()].increment();
+
+            LogLinearHistogram distribution = metric.getDistribution();
+            if (distribution != null) {
+                sendPercentile(metric, "P50", distribution.getValueAtPercentile(50));
+                sendPercentile(metric, "P90", distribution.getValueAtPercentile(90));
+                sendPercentile(metric, "P99", distribution.getValueAtPercentile(99));
+            }
         }
     }
 
+    /**
+     * Send a single value metric, not aggregated, with the given properties
+     *
+     * @param name
+     * @param value
+     * @param properties
+     */
+    public void sendMetric(String name, double value, Map<String, String> properties) {
+        MetricTelemetry telem = new MetricTelemetry(name, value);
+        telem.getContext().getProperties().putAll(properties);
+
+        telemetryClient.track(telem);
+        sent[TelemetryType.METRIC.ordinal()].increment();
+    }
+
+    /**
+     * Send a percentile of a histogram metric as a metric of its own, e.g. "Memory Bytes (MB) P99"
+     *
+     * @param metric
+     * @param percentile
+     * @param value
+     */
+    private void sendPercentile(CustomMetric metric, String percentile, double value) {
+        MetricTelemetry telem = new MetricTelemetry(metric.getName() + " " + percentile, value);
+
+        telem.getContext().getProperties().putAll(metric.getProperties());
+        setTelemetryProperty(telem, "instance_index", metric.getInstanceId());
+        setTelemetryProperty(telem, "app_name", metric.getApplicationName());
+        setTelemetryProperty(telem, "space_name", metric.getSpaceName());
+        setTelemetryProperty(telem, "org_name", metric.getOrganizationName());
+        setTelemetryProperty(telem, "app_id", metric.getApplicationId());
+
+        telemetryClient.track(telem);
+        sent[TelemetryType.METRIC.ordinal()].increment();
+    }
+
     /**
      * Send Event telemetry to Application Insights
      *
@@ -181,6 +315,7 @@ public class ApplicationInsightsSender {
 
         EventTelemetry telem = new EventTelemetry(msg.getName());
 
+        telem.getContext().getProperties().putAll(msg.getProperties());
         setTelemetryProperty(telem, "source_instance", msg.getInstanceId());
         setTelemetryProperty(telem, "app_name", msg.getApplicationName());
         setTelemetryProperty(telem, "space_name", msg.getSpaceName());
@@ -188,5 +323,6 @@ public class ApplicationInsightsSender {
         setTelemetryProperty(telem, "app_id", msg.getApplicationId());
 
         telemetryClient.track(telem);
+        sent[TelemetryType.APP_EVENT.ordinal()].increment();
     }
 }
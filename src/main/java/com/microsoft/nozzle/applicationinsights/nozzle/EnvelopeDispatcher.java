@@ -0,0 +1,279 @@
+package com.microsoft.nozzle.applicationinsights.nozzle;
+
+import com.microsoft.nozzle.applicationinsights.config.NozzleProperties;
+import com.microsoft.nozzle.applicationinsights.config.TelemetryType;
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.doppler.ContainerMetric;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.EventType;
+import org.cloudfoundry.doppler.LogMessage;
+import org.cloudfoundry.doppler.MessageType;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded stage between the Firehose and the event router
+ * <p>
+ * Envelopes are queued up to a count and an estimated byte limit. When the queue fills up, envelopes are shed by
+ * telemetry type according to the shedding policy, so that under overload stdout traces are dropped first while stderr
+ * traces, events and metrics are kept.
+ * <p>
+ * In the default "pool" mode all threads take envelopes from one queue. In the "ordered" mode each thread has its own
+ * lane, and envelopes are assigned to a lane by application id, or application id and instance, so the envelopes of an
+ * app (instance) are routed in the order they were received.
+ */
+@Slf4j
+public class EnvelopeDispatcher implements PublicMetrics {
+
+    // Estimated size of an envelope besides the log message
+    private static final int ENVELOPE_OVERHEAD_BYTES = 256;
+
+    private final FirehoseEventRouter router;
+    private final NozzleProperties properties;
+
+    // One shared queue in the pool mode, one queue per lane in the ordered mode
+    private final List<BlockingQueue<QueuedEnvelope>> lanes = new ArrayList<BlockingQueue<QueuedEnvelope>>();
+    private boolean ordered;
+    private boolean orderedByInstance;
+
+    private final AtomicInteger queuedCount = new AtomicInteger();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    // Workers routing an envelope
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder[] dropped = new LongAdder[TelemetryType.values().length];
+
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private volatile boolean running = false;
+
+    public EnvelopeDispatcher(FirehoseEventRouter router, NozzleProperties properties) {
+        this.router = router;
+        this.properties = properties;
+        for (int i = 0; i < dropped.length; i++) {
+            dropped[i] = new LongAdder();
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        ordered = "ordered".equalsIgnoreCase(properties.getDispatchMode());
+        orderedByInstance = "instance".equalsIgnoreCase(properties.getDispatchOrderKey());
+
+        if (ordered) {
+            int laneCount = properties.getDispatchLanes() > 0 ? properties.getDispatchLanes() : Runtime.getRuntime().availableProcessors();
+            for (int i = 0; i < laneCount; i++) {
+                BlockingQueue<QueuedEnvelope> lane = new LinkedBlockingQueue<QueuedEnvelope>();
+                lanes.add(lane);
+                startWorker("envelope-lane-" + i, lane);
+            }
+            log.info("Dispatching envelopes in {} lanes ordered by {}, queue capacity: {} envelopes, {} bytes", laneCount,
+                    orderedByInstance ? "app instance" : "app", properties.getDispatchQueueCapacity(), properties.getDispatchQueueMaxBytes());
+        } else {
+            BlockingQueue<QueuedEnvelope> queue = new LinkedBlockingQueue<QueuedEnvelope>();
+            lanes.add(queue);
+            int threads = Math.max(1, properties.getDispatchThreads());
+            for (int i = 0; i < threads; i++) {
+                startWorker("envelope-dispatch-" + i, queue);
+            }
+            log.info("Dispatching envelopes with {} threads, queue capacity: {} envelopes, {} bytes", threads,
+                    properties.getDispatchQueueCapacity(), properties.getDispatchQueueMaxBytes());
+        }
+    }
+
+    private void startWorker(String name, BlockingQueue<QueuedEnvelope> queue) {
+        Thread worker = new Thread(() -> work(queue), name);
+        worker.setDaemon(true);
+        worker.start();
+        workers.add(worker);
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        workers.forEach(Thread::interrupt);
+        workers.clear();
+    }
+
+    /**
+     * Queue the envelope to be routed, or drop it if the queue is above the shedding threshold of its telemetry type
+     *
+     * @param envelope
+     * @return whether the envelope was queued
+     */
+    public boolean dispatch(Envelope envelope) {
+        TelemetryType type = getTelemetryType(envelope);
+        if (type == null) {
+            return false;
+        }
+
+        int threshold = isStderr(envelope) ? 100 : properties.getSheddingThresholds().get(type);
+        long countLimit = (long) properties.getDispatchQueueCapacity() * threshold / 100;
+        long bytesLimit = properties.getDispatchQueueMaxBytes() * threshold / 100;
+        int size = estimateSize(envelope);
+
+        if (queuedCount.incrementAndGet() > countLimit) {
+            queuedCount.decrementAndGet();
+            drop(type);
+            return false;
+        }
+        if (queuedBytes.addAndGet(size) > bytesLimit) {
+            queuedBytes.addAndGet(-size);
+            queuedCount.decrementAndGet();
+            drop(type);
+            return false;
+        }
+
+        lanes.get(ordered ? laneOf(envelope) : 0).add(new QueuedEnvelope(envelope, size));
+        accepted.increment();
+        return true;
+    }
+
+    private void drop(TelemetryType type) {
+        dropped[type.ordinal()].increment();
+        log.trace("Queue is above the shedding threshold, dropping {} envelope", type);
+    }
+
+    /**
+     * Get the lane of an envelope from its application id, and instance when ordering by instance
+     *
+     * @param envelope
+     * @return
+     */
+    private int laneOf(Envelope envelope) {
+        int hash = 0;
+        if (envelope.getEventType() == EventType.CONTAINER_METRIC) {
+            ContainerMetric metric = envelope.getContainerMetric();
+            if (metric != null) {
+                hash = hash(metric.getApplicationId(), orderedByInstance ? metric.getInstanceIndex() : null);
+            }
+        } else {
+            LogMessage message = envelope.getLogMessage();
+            hash = hash(message.getApplicationId(), orderedByInstance ? message.getSourceInstance() : null);
+        }
+        hash ^= (hash >>> 16);
+        return (hash & Integer.MAX_VALUE) % lanes.size();
+    }
+
+    private static int hash(String appId, Object instance) {
+        int hash = appId == null ? 0 : appId.hashCode();
+        return instance == null ? hash : 31 * hash + instance.hashCode();
+    }
+
+    private void work(BlockingQueue<QueuedEnvelope> queue) {
+        while (running) {
+            QueuedEnvelope queued;
+            try {
+                queued = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            queuedCount.decrementAndGet();
+            queuedBytes.addAndGet(-queued.size);
+
+            activeWorkers.incrementAndGet();
+            try {
+                router.routeEnvelope(queued.envelope);
+            } catch (Exception e) {
+                log.error("Error routing envelope: {}", e.getMessage(), e);
+            } finally {
+                activeWorkers.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Get the telemetry type an envelope is converted to, RTR logs to requests, other logs to traces
+     *
+     * @param envelope
+     * @return null if the envelope is not converted to telemetry
+     */
+    static TelemetryType getTelemetryType(Envelope envelope) {
+        if (envelope.getEventType() == EventType.CONTAINER_METRIC) {
+            return TelemetryType.METRIC;
+        }
+        if (envelope.getEventType() != EventType.LOG_MESSAGE || envelope.getLogMessage() == null) {
+            return null;
+        }
+
+        String sourceType = envelope.getLogMessage().getSourceType();
+        if ("RTR".equals(sourceType)) {
+            return TelemetryType.HTTP_REQUEST;
+        }
+        if ("API".equals(sourceType) || "STG".equals(sourceType) || "SSH".equals(sourceType)) {
+            return TelemetryType.APP_EVENT;
+        }
+        return TelemetryType.TRACE;
+    }
+
+    private static boolean isStderr(Envelope envelope) {
+        LogMessage message = envelope.getLogMessage();
+        return message != null && message.getMessageType() == MessageType.ERR;
+    }
+
+    private static int estimateSize(Envelope envelope) {
+        LogMessage message = envelope.getLogMessage();
+        if (message == null || message.getMessage() == null) {
+            return ENVELOPE_OVERHEAD_BYTES;
+        }
+        return ENVELOPE_OVERHEAD_BYTES + 2 * message.getMessage().length();
+    }
+
+    public long getAcceptedCount() {
+        return accepted.sum();
+    }
+
+    public long getDroppedCount(TelemetryType type) {
+        return dropped[type.ordinal()].sum();
+    }
+
+    public int getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public int getActiveWorkerCount() {
+        return activeWorkers.get();
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<Metric<?>>();
+        metrics.add(new Metric<Long>("nozzle.dispatch.accepted", getAcceptedCount()));
+        for (TelemetryType type : TelemetryType.values()) {
+            metrics.add(new Metric<Long>("nozzle.dispatch.dropped." + type.getConfigName(), getDroppedCount(type)));
+        }
+        metrics.add(new Metric<Integer>("nozzle.dispatch.queued", getQueuedCount()));
+        metrics.add(new Metric<Long>("nozzle.dispatch.queued.bytes", getQueuedBytes()));
+        metrics.add(new Metric<Integer>("nozzle.dispatch.threads", workers.size()));
+        metrics.add(new Metric<Integer>("nozzle.dispatch.threads.active", getActiveWorkerCount()));
+        return metrics;
+    }
+
+    private static final class QueuedEnvelope {
+        private final Envelope envelope;
+        private final int size;
+
+        private QueuedEnvelope(Envelope envelope, int size) {
+            this.envelope = envelope;
+            this.size = size;
+        }
+    }
+}
@@ -1,26 +1,56 @@
 package com.microsoft.nozzle.applicationinsights.nozzle;
 
+import com.microsoft.nozzle.applicationinsights.cache.AppDataCache;
 import com.microsoft.nozzle.applicationinsights.config.ApplicationConfig;
 import com.microsoft.nozzle.applicationinsights.config.NozzleProperties;
+import com.microsoft.nozzle.applicationinsights.config.RoutingConfig;
+import com.microsoft.nozzle.applicationinsights.config.RoutingConfigSource;
 import com.microsoft.nozzle.applicationinsights.config.TelemetryType;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.cloudfoundry.doppler.*;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.context.SmartLifecycle;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 /**
- * Consume events from the Firehose and delegate to the event router
+ * Consume events from the Firehose and delegate to the event router through the dispatcher
  */
 @RequiredArgsConstructor
 @Slf4j
-public class FirehoseConsumer implements SmartLifecycle {
+public class FirehoseConsumer implements SmartLifecycle, PublicMetrics {
     private final DopplerClient dopplerClient;
     private final NozzleProperties properties;
-    private final FirehoseEventRouter router;
+    private final EnvelopeDispatcher dispatcher;
+    private final AppDataCache appDataCache;
+    private final RoutingConfigSource routingConfigSource;
+    private final AppSenderResolver senderResolver;
 
-    private boolean running = false;
+    private volatile boolean running = false;
+
+    // Envelopes of the apps not monitored are dropped before being dispatched
+    private final LongAdder filtered = new LongAdder();
+
+    private final LongAdder[] received = new LongAdder[EventType.values().length];
+    // Log messages received per source type, e.g. "RTR", "APP/PROC/WEB"
+    private final Map<String, LongAdder> receivedLogs = new ConcurrentHashMap<String, LongAdder>();
+    private final LongAdder reconnects = new LongAdder();
+    private volatile long lastEnvelopeMillis = 0;
+
+    {
+        for (int i = 0; i < received.length; i++) {
+            received[i] = new LongAdder();
+        }
+    }
 
     @Override
     public boolean isAutoStartup() {
@@ -33,18 +63,43 @@ public class FirehoseConsumer implements SmartLifecycle {
         stop();
     }
 
+    /**
+     * Connect to the Firehose once the app data cache is warm, or the warm-up timeout elapsed, so that the telemetries
+     * are sent with the app, space and organization names
+     */
     @Override
     public void start() {
+        Thread starter = new Thread(() -> {
+            try {
+                if (!appDataCache.awaitWarmup(properties.getAppCacheWarmupTimeout(), TimeUnit.SECONDS)) {
+                    log.warn("App Data Cache is not warm after {} seconds, connecting to the Firehose anyway", properties.getAppCacheWarmupTimeout());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (running) {
+                connect();
+            }
+        }, "firehose-consumer-start");
+        starter.setDaemon(true);
+
+        running = true;
+        starter.start();
+    }
+
+    private void connect() {
         log.info("Connecting to the Firehose");
         FirehoseRequest request = FirehoseRequest.builder()
                 .subscriptionId(properties.getSubscriptionId()).build();
 
-        log.info("Ignoring telemetry types: {}", properties.getIgnoredTelemetries().stream().map(TelemetryType::toString).collect(Collectors.joining(", ")));
-        log.info("Collecting telemetries for apps: {}", properties.getApplicationConfigs().stream().map(ApplicationConfig::getApplicationId).collect(Collectors.joining(", ")));
+        RoutingConfig config = routingConfigSource.getCurrent();
+        log.info("Ignoring telemetry types: {}", config.getIgnoredTelemetries().stream().map(TelemetryType::toString).collect(Collectors.joining(", ")));
+        log.info("Collecting telemetries for apps: {}", String.join(", ", config.getApplicationIds()));
+        config.getApplicationConfigs().stream().filter(ApplicationConfig::isScoped)
+                .forEach(scoped -> log.info("Collecting telemetries for apps in: {}", scoped.getScope()));
 
-        dopplerClient.firehose(request).retry().subscribe(this::receiveEvent, this::receiveError);
-
-        running = true;
+        dopplerClient.firehose(request).doOnError(this::reconnect).retry().subscribe(this::receiveEvent, this::receiveError);
     }
 
     @Override
@@ -64,10 +119,63 @@ public class FirehoseConsumer implements SmartLifecycle {
 
     private void receiveEvent(Envelope envelope) {
         EventType type = envelope.getEventType();
+        lastEnvelopeMillis = System.currentTimeMillis();
+        if (type != null) {
+            received[type.ordinal()].increment();
+        }
+        if (type == EventType.LOG_MESSAGE && envelope.getLogMessage() != null && envelope.getLogMessage().getSourceType() != null) {
+            receivedLogs.computeIfAbsent(envelope.getLogMessage().getSourceType(), sourceType -> new LongAdder()).increment();
+        }
 
         if (type == EventType.LOG_MESSAGE || type == EventType.CONTAINER_METRIC) {
-            router.routeEnvelope(envelope);
+            String appId = getApplicationId(envelope);
+            if (!senderResolver.isMonitored(appId)) {
+                filtered.increment();
+                return;
+            }
+            dispatcher.dispatch(envelope);
+        }
+    }
+
+    /**
+     * Get the application id of a log message or container metric envelope
+     *
+     * @param envelope
+     * @return
+     */
+    private static String getApplicationId(Envelope envelope) {
+        if (envelope.getEventType() == EventType.LOG_MESSAGE) {
+            LogMessage message = envelope.getLogMessage();
+            return message == null ? null : message.getApplicationId();
         }
+        ContainerMetric metric = envelope.getContainerMetric();
+        return metric == null ? null : metric.getApplicationId();
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<Metric<?>>();
+        metrics.add(new Metric<Long>("nozzle.firehose.filtered", filtered.sum()));
+        for (EventType type : EventType.values()) {
+            metrics.add(new Metric<Long>("nozzle.firehose.received." + type.name().toLowerCase(), received[type.ordinal()].sum()));
+        }
+        receivedLogs.forEach((sourceType, count) ->
+                metrics.add(new Metric<Long>("nozzle.firehose.received.log_message." + sourceType.toLowerCase(), count.sum())));
+        metrics.add(new Metric<Long>("nozzle.firehose.reconnects", reconnects.sum()));
+        if (lastEnvelopeMillis > 0) {
+            metrics.add(new Metric<Long>("nozzle.firehose.idle.millis", System.currentTimeMillis() - lastEnvelopeMillis));
+        }
+        return metrics;
+    }
+
+    /**
+     * Count the reconnection following an error of the Firehose connection
+     *
+     * @param error
+     */
+    private void reconnect(Throwable error) {
+        reconnects.increment();
+        log.warn("Firehose connection failed, reconnecting: {}", error.getMessage());
     }
 
     private void receiveError(Throwable error) {
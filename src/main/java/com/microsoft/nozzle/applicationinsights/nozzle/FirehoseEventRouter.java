@@ -1,112 +1,199 @@
 package com.microsoft.nozzle.applicationinsights.nozzle;
 
 import com.microsoft.nozzle.applicationinsights.config.NozzleProperties;
+import com.microsoft.nozzle.applicationinsights.config.RoutingConfig;
+import com.microsoft.nozzle.applicationinsights.config.RoutingConfigSource;
 import com.microsoft.nozzle.applicationinsights.config.TelemetryType;
 import com.microsoft.nozzle.applicationinsights.config.ApplicationConfig;
 import com.microsoft.nozzle.applicationinsights.cache.AppDataCache;
+import com.microsoft.nozzle.applicationinsights.channel.TelemetryChannelFactory;
 import com.microsoft.nozzle.applicationinsights.message.*;
+import com.microsoft.nozzle.applicationinsights.metric.MetricKey;
+import com.microsoft.nozzle.applicationinsights.sampling.SamplingDecision;
+import com.microsoft.nozzle.applicationinsights.sampling.TraceSampler;
 import lombok.extern.slf4j.Slf4j;
 import org.cloudfoundry.doppler.LogMessage;
 import org.cloudfoundry.doppler.ContainerMetric;
 import org.cloudfoundry.doppler.Envelope;
 import org.cloudfoundry.doppler.EventType;
+import org.cloudfoundry.doppler.MessageType;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.annotation.Async;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
 /**
  * Parse events from the Cloud Foundry Firehose and send corresponding telemetries to Application Insights
  */
 @Service
 @Slf4j
-public class FirehoseEventRouter {
+public class FirehoseEventRouter implements PublicMetrics {
 
     private final AppDataCache appDataCache;
     private final NozzleProperties properties;
-    private final Map<String, ApplicationInsightsSender> appIdtoSenderMap = new HashMap<String, ApplicationInsightsSender>();
+    private final TelemetryChannelFactory channelFactory;
+    // Holds the senders, ignored telemetry types and routes, replaced as a whole when the routing config is reloaded
+    private final AppSenderResolver senderResolver;
+    private final Function<MetricKey, CustomMetric> metricFactory = this::createMetric;
+    private final TraceSampler traceSampler;
+    private final RequestNameNormalizer requestNameNormalizer;
+    private final TraceCoalescer traceCoalescer;
+    private final AppEventClassifier eventClassifier;
+    private final LogMetricExtractor logMetricExtractor;
+    private final JsonLogParser jsonLogParser;
+    private final LongAdder rtrParseFailures = new LongAdder();
 
     @Autowired
-    public FirehoseEventRouter(NozzleProperties properties, AppDataCache appDataCache) {
+    public FirehoseEventRouter(NozzleProperties properties, AppDataCache appDataCache, TelemetryChannelFactory channelFactory,
+                               RoutingConfigSource routingConfigSource, AppSenderResolver senderResolver) {
 
         this.properties = properties;
 
         this.appDataCache = appDataCache;
 
-        // Create a sender for each app
-        List<ApplicationConfig> configs = properties.getApplicationConfigs();
-        for (ApplicationConfig config : configs) {
-            log.trace("Creating sender for app: {}", config.getApplicationId());
-            ApplicationInsightsSender sender = new ApplicationInsightsSender(config.getInstrumentationKey());
-            // Instrumentation key is not null
-            if (sender.isEnabled()) {
-                appIdtoSenderMap.put(config.getApplicationId(), sender);
-            }
-        }
+        this.channelFactory = channelFactory;
+
+        this.senderResolver = senderResolver;
+
+        this.traceSampler = new TraceSampler(properties);
+        this.requestNameNormalizer = new RequestNameNormalizer(properties);
+        this.traceCoalescer = new TraceCoalescer(properties, this::sendTrace);
+        this.eventClassifier = new AppEventClassifier(properties);
+        this.logMetricExtractor = new LogMetricExtractor(properties);
+        this.jsonLogParser = new JsonLogParser(properties);
+
+        // Create a sender for each instrumentation key, and update them when the routing config is reloaded
+        routingConfigSource.addListener(this::applyRoutingConfig);
+
+        traceCoalescer.start();
     }
 
     /**
-     * Get the sender for an app
+     * Build the routes of a new routing config, keeping the senders whose instrumentation key is still used, then drain
+     * and stop the senders no longer used in the background, so a reload does not block the file watcher or the request
+     * of the routing endpoint
      *
-     * @param appId
-     * @return
+     * @param config
      */
-    private ApplicationInsightsSender getSender(String appId) {
-        return appIdtoSenderMap.get(appId);
+    void applyRoutingConfig(RoutingConfig config) {
+        // Envelopes being routed may still use the previous senders, their telemetries are dropped once stopped
+        swapRoutes(config).forEach((key, sender) -> {
+            Thread stopper = new Thread(() -> {
+                log.info("Stopping sender of instrumentation key {}", key);
+                sender.shutdown(10, TimeUnit.SECONDS);
+            }, "ai-sender-stop-" + key.substring(0, Math.min(8, key.length())));
+            stopper.setDaemon(true);
+            stopper.start();
+        });
     }
 
     /**
-     * Returns whether the telemetry type is ignored
+     * Publish the routes of a routing config
      *
-     * @param telemetryType
-     * @return
+     * @param config
+     * @return the senders no longer used, by instrumentation key
      */
-    private boolean ignoreTelemetryType(TelemetryType telemetryType) {
-        return properties.getIgnoredTelemetries().contains(telemetryType);
+    private synchronized Map<String, ApplicationInsightsSender> swapRoutes(RoutingConfig config) {
+        Map<String, ApplicationInsightsSender> previous = senderResolver.getTable().getSenders();
+        Map<String, ApplicationInsightsSender> senders = new HashMap<String, ApplicationInsightsSender>();
+        Map<String, AppSenderResolver.Route> routesById = new HashMap<String, AppSenderResolver.Route>();
+        List<AppSenderResolver.Route> scopedRoutes = new ArrayList<AppSenderResolver.Route>();
+
+        for (ApplicationConfig appConfig : config.getApplicationConfigs()) {
+            String key = appConfig.getInstrumentationKey();
+            if (key == null) {
+                log.error("Error: no instrumentation key set for app {}",
+                        appConfig.getApplicationId() == null ? appConfig.getScope() : appConfig.getApplicationId());
+                continue;
+            }
+            ApplicationInsightsSender sender = senders.get(key);
+            if (sender == null) {
+                sender = previous.get(key);
+                if (sender == null) {
+                    log.trace("Creating sender for instrumentation key: {}", key);
+                    sender = new ApplicationInsightsSender(key, channelFactory.create(key));
+                }
+                senders.put(key, sender);
+            }
+            if (appConfig.getApplicationId() != null) {
+                routesById.put(appConfig.getApplicationId(), new AppSenderResolver.Route(sender, appConfig));
+            } else if (appConfig.isScoped()) {
+                scopedRoutes.add(new AppSenderResolver.Route(sender, appConfig));
+            }
+        }
+
+        senderResolver.setRoutes(senders, config.getIgnoredTelemetries(), routesById, scopedRoutes);
+
+        Map<String, ApplicationInsightsSender> removed = new HashMap<String, ApplicationInsightsSender>(previous);
+        removed.keySet().removeAll(senders.keySet());
+        return removed;
+    }
+
+    /**
+     * Send the pending telemetries of all senders before shutting down
+     */
+    @PreDestroy
+    void shutdown() {
+        traceCoalescer.stop();
+        for (ApplicationInsightsSender sender : senderResolver.getTable().getSenders().values()) {
+            sender.shutdown(10, TimeUnit.SECONDS);
+        }
     }
 
     /**
-     * Convert an envelope into an Application Insights telemetry.
+     * Convert an envelope into an Application Insights telemetry. Called by the dispatcher threads.
      *
      * @param envelope The event from the Firehose
      */
-    @Async
     void routeEnvelope(Envelope envelope) {
+        // Read once, so the envelope is routed with the senders and ignored types of a single routing config
+        AppSenderResolver.RoutingTable table = senderResolver.getTable();
         if (envelope.getEventType() == EventType.LOG_MESSAGE) {
             LogMessage message = envelope.getLogMessage();
             if (message == null) {
                 return;
             }
-            ApplicationInsightsSender sender = getSender(message.getApplicationId());
-            if (sender == null) {
+            AppSenderResolver.Route route = table.resolve(message.getApplicationId());
+            if (route == AppSenderResolver.NOT_MONITORED) {
                 return;
             }
+            ApplicationInsightsSender sender = route.getSender();
             switch (message.getSourceType()) {
                 case "RTR":
-                    if (!ignoreTelemetryType(TelemetryType.HTTP_REQUEST)) {
-                        routeRtrMessage(message, sender);
+                    if (!table.isIgnored(TelemetryType.HTTP_REQUEST)) {
+                        routeRtrMessage(message, sender, route.getConfig());
                     }
                     break;
-                case "API":
-                case "STG":
-                case "SSH":
-                    if (!ignoreTelemetryType(TelemetryType.APP_EVENT)) {
-                        routeEvent(message, sender);
-                    }
                 default:
-                    if (!ignoreTelemetryType(TelemetryType.TRACE)) {
-                        routeTraceMessage(message, sender);
+                    // Lines classified as events, e.g. of the API, STG and SSH sources, are not sent as traces too
+                    if (!table.isIgnored(TelemetryType.APP_EVENT) && routeEvent(message, sender)) {
+                        break;
+                    }
+                    if (!table.isIgnored(TelemetryType.METRIC) && routeLogMetrics(message, sender)
+                            && !properties.isLogMetricKeepLines()) {
+                        break;
+                    }
+                    if (!table.isIgnored(TelemetryType.TRACE)) {
+                        routeTraceMessage(message);
                     }
             }
-        } else if (envelope.getEventType() == EventType.CONTAINER_METRIC && !ignoreTelemetryType(TelemetryType.METRIC)) {
+        } else if (envelope.getEventType() == EventType.CONTAINER_METRIC && !table.isIgnored(TelemetryType.METRIC)) {
             ContainerMetric message = envelope.getContainerMetric();
 
             if (message != null) {
-                ApplicationInsightsSender sender = getSender(message.getApplicationId());
+                ApplicationInsightsSender sender = table.resolve(message.getApplicationId()).getSender();
                 if (sender != null) {
                     routeMetric(message, sender);
                 }
@@ -115,47 +202,37 @@ public class FirehoseEventRouter {
     }
 
     /**
-     * Parse LogMessage to Event telemetry, and send to Application Insights
+     * Classify LogMessage into an Event telemetry, and send to Application Insights
      *
      * @param message
      * @param sender
+     * @return whether the message is an event
      */
-    private void routeEvent(LogMessage message, ApplicationInsightsSender sender) {
-        String msg = message.getMessage();
-        if (msg == null) {
-            return;
+    private boolean routeEvent(LogMessage message, ApplicationInsightsSender sender) {
+        EventMessage event = eventClassifier.classify(message.getSourceType(), message.getMessage());
+        if (event == null) {
+            return false;
         }
-        String eventName = null;
-        switch (message.getSourceType()) {
-            case "API":
-                if (msg.contains("({\"state\"=>\"STARTED\"})")) {
-                    eventName = "App Started";
-                } else if (msg.contains("({\"state\"=>\"STOPPED\"})")) {
-                    eventName = "App Stopped";
-                } else if (msg.contains("Deleted app")) {
-                    eventName = "App Deleted";
-                } else if (msg.contains("Process has crashed")) {
-                    eventName = "App Crashed";
-                }
-                break;
-            case "STG":
-                if (msg.contains("Staging complete")) {
-                    eventName = "Staging Complete";
-                }
-                break;
-            case "SSH":
-                if (msg.contains("Successful remote access")) {
-                    eventName = "SSH Success";
-                } else if (msg.contains("Remote access ended")) {
-                    eventName = "SSH End";
-                }
-                break;
-        }
-        if (eventName != null) {
-            EventMessage event = new EventMessage(eventName);
-            setCommonInfo(message.getApplicationId(), message.getSourceInstance(), event);
-            sender.sendEvent(event);
+        setCommonInfo(message.getApplicationId(), message.getSourceInstance(), event);
+        sender.sendEvent(event);
+        return true;
+    }
+
+    /**
+     * Extract metric values from an application log line, and aggregate them
+     *
+     * @param message
+     * @param sender
+     * @return whether a value was extracted
+     */
+    private boolean routeLogMetrics(LogMessage message, ApplicationInsightsSender sender) {
+        if (!logMetricExtractor.isEnabled() || !message.getSourceType().startsWith("APP")) {
+            return false;
         }
+        String appId = message.getApplicationId();
+        String instanceId = message.getSourceInstance();
+        return logMetricExtractor.extract(appId, message.getMessage(),
+                (name, value) -> trackMetric(name, appId, instanceId, sender, value));
     }
 
     /**
@@ -165,47 +242,72 @@ public class FirehoseEventRouter {
      * @param sender
      */
     private void routeMetric(ContainerMetric message, ApplicationInsightsSender sender) {
+        String appId = message.getApplicationId();
+        String instanceIndex = message.getInstanceIndex().toString();
+
         Double cpu = message.getCpuPercentage();
         if (cpu != null) {
-            trackMetric("CPU Percentage (%)", message.getApplicationId(), message.getInstanceIndex().toString(), sender, cpu.doubleValue());
+            trackMetric("CPU Percentage (%)", appId, instanceIndex, sender, cpu.doubleValue());
         }
 
         Long disk = message.getDiskBytes();
         if (disk != null) {
-            trackMetric("Disk Bytes (MB)", message.getApplicationId(), message.getInstanceIndex().toString(), sender, disk.doubleValue() / 1048576);
+            trackMetric("Disk Bytes (MB)", appId, instanceIndex, sender, disk.doubleValue() / 1048576);
         }
 
         Long memory = message.getMemoryBytes();
         if (memory != null) {
-            trackMetric("Memory Bytes (MB)", message.getApplicationId(), message.getInstanceIndex().toString(), sender, memory.doubleValue() / 1048576);
+            trackMetric("Memory Bytes (MB)", appId, instanceIndex, sender, memory.doubleValue() / 1048576);
         }
 
         Long diskQuota = message.getDiskBytesQuota();
         if (diskQuota != null) {
-            trackMetric("Disk Quota (MB)", message.getApplicationId(), message.getInstanceIndex().toString(), sender, diskQuota.doubleValue() / 1048576);
+            trackMetric("Disk Quota (MB)", appId, instanceIndex, sender, diskQuota.doubleValue() / 1048576);
         }
 
         Long memoryQuota = message.getMemoryBytesQuota();
         if (memoryQuota != null) {
-            trackMetric("Memory Quota (MB)", message.getApplicationId(), message.getInstanceIndex().toString(), sender, memoryQuota.doubleValue() / 1048576);
+            trackMetric("Memory Quota (MB)", appId, instanceIndex, sender, memoryQuota.doubleValue() / 1048576);
         }
     }
 
     private void trackMetric(String name, String appId, String instanceIndex, ApplicationInsightsSender sender, double value) {
-        CustomMetric metric = new CustomMetric(name);
-        setCommonInfo(appId, instanceIndex, metric);
-        sender.trackMetric(metric, value);
+        sender.trackMetric(new MetricKey(name, appId, instanceIndex), value, metricFactory);
+    }
+
+    /**
+     * Create the metric of a series with the app metadata, once per series and interval
+     *
+     * @param key
+     * @return
+     */
+    private CustomMetric createMetric(MetricKey key) {
+        CustomMetric metric = new CustomMetric(key.getName());
+        metric.setHistogram(properties.getHistogramMetricNames().contains(key.getName()));
+        setCommonInfo(key.getApplicationId(), key.getInstanceId(), metric);
+        for (int i = 0; i < key.getDimensionCount(); i++) {
+            metric.getProperties().put(key.getDimensionName(i), key.getDimensionValue(i));
+        }
+        return metric;
     }
 
     /**
-     * Send aggregated metric data to Application Insights at an interval of 1 minute
+     * Send aggregated metric data, and the trace sampling counts, to Application Insights at an interval of 1 minute
      */
     @Scheduled(fixedRate = 60000)
     void sendMetric() {
-        if (!ignoreTelemetryType(TelemetryType.METRIC)) {
-            for (ApplicationInsightsSender sender : appIdtoSenderMap.values()) {
-                sender.sendMetrics();
+        traceSampler.drainCounts((appId, instanceId, kept, sampledOut, rateLimited) -> {
+            ApplicationInsightsSender sender = senderResolver.getSender(appId);
+            if (sender != null) {
+                trackMetric("Traces Kept", appId, instanceId, sender, kept);
+                trackMetric("Traces Sampled Out", appId, instanceId, sender, sampledOut);
+                trackMetric("Traces Rate Limited", appId, instanceId, sender, rateLimited);
             }
+        });
+
+        // Only the sampling counts are aggregated when metrics are ignored
+        for (ApplicationInsightsSender sender : senderResolver.getTable().getSenders().values()) {
+            sender.sendMetrics();
         }
     }
 
@@ -214,20 +316,73 @@ public class FirehoseEventRouter {
      *
      * @param message
      * @param sender
+     * @param config
      */
-    private void routeRtrMessage(LogMessage message, ApplicationInsightsSender sender) {
+    private void routeRtrMessage(LogMessage message, ApplicationInsightsSender sender, ApplicationConfig config) {
         String msg = message.getMessage();
 
         if (msg != null) {
             RtrMessage rtr = new RtrMessage();
 
             if (rtr.parseRtrMessage(msg)) {
+                RequestNameNormalizer.Route route = requestNameNormalizer.getRoute(message.getApplicationId(), rtr.getPath());
+                rtr.setName(route.getName(rtr.getMethod()));
+
+                if (config.isAggregatingRequests()) {
+                    aggregateRequest(message, rtr, route.getTemplate(), sender);
+                    if (!keepRequest(rtr, config)) {
+                        return;
+                    }
+                }
                 setCommonInfo(message.getApplicationId(), message.getSourceInstance(), rtr);
                 sender.sendRequest(rtr);
+            } else {
+                rtrParseFailures.increment();
             }
         }
     }
 
+    /**
+     * Aggregate the request into count, failure and duration metrics per method, route, status class and instance
+     *
+     * @param message
+     * @param rtr
+     * @param route   normalized route of the request
+     * @param sender
+     */
+    private void aggregateRequest(LogMessage message, RtrMessage rtr, String route, ApplicationInsightsSender sender) {
+        String appId = message.getApplicationId();
+        String instanceId = message.getSourceInstance();
+        String method = rtr.getMethod();
+        String statusClass = rtr.getStatusCode().charAt(0) + "xx";
+
+        sender.trackMetric(new MetricKey("Request Count", appId, instanceId,
+                "method", method, "route", route, "status_class", statusClass), 1, metricFactory);
+        if (!rtr.isSuccess()) {
+            sender.trackMetric(new MetricKey("Request Failures", appId, instanceId,
+                    "method", method, "route", route, "status_class", statusClass), 1, metricFactory);
+        }
+        if (rtr.getResponseTime() != null) {
+            sender.trackMetric(new MetricKey("Request Duration (ms)", appId, instanceId,
+                    "method", method, "route", route, "status_class", statusClass), rtr.getResponseTime(), metricFactory);
+        }
+    }
+
+    /**
+     * Whether a request aggregated into metrics is also sent as Request telemetry: all failed requests if configured,
+     * and a sample of the others
+     *
+     * @param rtr
+     * @param config
+     * @return
+     */
+    private static boolean keepRequest(RtrMessage rtr, ApplicationConfig config) {
+        if (!rtr.isSuccess()) {
+            return config.isKeepFailedRequests();
+        }
+        return config.getRequestSamplePercent() > 0 && ThreadLocalRandom.current().nextInt(100) < config.getRequestSamplePercent();
+    }
+
     /**
      * Set the common information from LogMessage
      *
@@ -242,23 +397,80 @@ public class FirehoseEventRouter {
 
 
     /**
-     * Generate Trace telemetry, and send to Application Insights
+     * Generate Trace telemetry, and send to Application Insights, after merging multi-line entries when enabled
      *
      * @param message
-     * @param sender
      */
-    private void routeTraceMessage(LogMessage message, ApplicationInsightsSender sender) {
+    private void routeTraceMessage(LogMessage message) {
         String msg = message.getMessage();
 
         if (msg != null) {
-            TraceMessage trace = new TraceMessage();
+            if (traceCoalescer.isEnabled()) {
+                traceCoalescer.add(message.getApplicationId(), message.getSourceInstance(), message.getMessageType(), msg);
+            } else {
+                sendTrace(message.getApplicationId(), message.getSourceInstance(), message.getMessageType(), msg, 1);
+            }
+        }
+    }
 
-            setCommonInfo(message.getApplicationId(), message.getSourceInstance(), trace);
+    /**
+     * Sample and send a trace of one or more log lines
+     *
+     * @param appId
+     * @param instanceId
+     * @param messageType
+     * @param msg
+     * @param lineCount
+     */
+    private void sendTrace(String appId, String instanceId, MessageType messageType, String msg, int lineCount) {
+        AppSenderResolver.Route route = senderResolver.resolve(appId);
+        ApplicationInsightsSender sender = route.getSender();
+        if (sender == null) {
+            return;
+        }
+        if (traceSampler.isEnabled() && traceSampler.sample(appId, instanceId, messageType) != SamplingDecision.KEPT) {
+            return;
+        }
+
+        TraceMessage trace = new TraceMessage();
+
+        setCommonInfo(appId, instanceId, trace);
 
-            trace.setMessage(msg);
-            trace.setMessageType(message.getMessageType());
+        trace.setMessage(msg);
+        trace.setMessageType(messageType);
+        trace.setLineCount(lineCount);
 
-            sender.sendTrace(trace);
+        // Lines not starting as a JSON object are sent as is, without parsing
+        if (route.getConfig().isJsonLogs() && JsonLogParser.isJson(msg)) {
+            jsonLogParser.lift(msg, trace);
         }
+
+        sender.sendTrace(trace);
+    }
+
+    /**
+     * The RTR parse failures, the apps whose route is cached, and the telemetries sent per type and instrumentation
+     * key, e.g. "nozzle.sent.trace.0a1b2c3d" for the key starting with 0a1b2c3d
+     */
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<Metric<?>>();
+        metrics.add(new Metric<Long>("nozzle.router.rtr.parse.failures", rtrParseFailures.sum()));
+        metrics.add(new Metric<Integer>("nozzle.router.resolved.apps", senderResolver.getResolvedCount()));
+        // Keys can share their first 8 characters
+        Map<String, long[]> sentPerKey = new HashMap<String, long[]>();
+        for (ApplicationInsightsSender sender : senderResolver.getTable().getSenders().values()) {
+            String key = sender.getInstrumentationKey();
+            long[] sent = sentPerKey.computeIfAbsent(key.substring(0, Math.min(8, key.length())), k -> new long[TelemetryType.values().length]);
+            for (TelemetryType type : TelemetryType.values()) {
+                sent[type.ordinal()] += sender.getSentCount(type);
+            }
+        }
+        sentPerKey.forEach((key, sent) -> {
+            for (TelemetryType type : TelemetryType.values()) {
+                metrics.add(new Metric<Long>("nozzle.sent." + type.getConfigName().toLowerCase() + "." + key, sent[type.ordinal()]));
+            }
+        });
+        return metrics;
     }
 }
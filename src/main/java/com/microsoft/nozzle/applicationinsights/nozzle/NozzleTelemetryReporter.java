@@ -0,0 +1,100 @@
+package com.microsoft.nozzle.applicationinsights.nozzle;
+
+import com.microsoft.nozzle.applicationinsights.channel.TelemetryChannelFactory;
+import com.microsoft.nozzle.applicationinsights.config.NozzleProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the metrics of the nozzle itself, the "nozzle.*" metrics of the actuator /metrics endpoint, to an Application
+ * Insights resource every minute
+ * <p>
+ * The counters of the endpoint are totals since the nozzle started, they are sent as the change since the previous
+ * report, so Application Insights can sum and average them over time. The gauges, e.g. the queue depth, are sent as
+ * their current value.
+ */
+@Slf4j
+public class NozzleTelemetryReporter {
+
+    private static final String PREFIX = "nozzle.";
+
+    // Metrics whose value is a current level, all the other ones are counters
+    private static final Set<String> GAUGES = new HashSet<String>(Arrays.asList(
+            "nozzle.appcache.apps",
+            "nozzle.appcache.warmup.millis",
+            "nozzle.dispatch.queued",
+            "nozzle.dispatch.queued.bytes",
+            "nozzle.dispatch.threads",
+            "nozzle.dispatch.threads.active",
+            "nozzle.firehose.idle.millis",
+            "nozzle.router.resolved.apps",
+            "nozzle.transmission.batch.items.avg",
+            "nozzle.transmission.latency.avg.millis",
+            "nozzle.transmission.latency.max.millis"));
+
+    // Value of each counter at the previous report, only used by the scheduler thread
+    private final Map<String, Double> previousCounts = new HashMap<String, Double>();
+
+    private final List<PublicMetrics> publicMetrics;
+    // null when no instrumentation key is configured for the nozzle
+    private final ApplicationInsightsSender sender;
+    private final Map<String, String> properties;
+
+    public NozzleTelemetryReporter(NozzleProperties nozzleProperties, TelemetryChannelFactory channelFactory, List<PublicMetrics> publicMetrics) {
+        this.publicMetrics = publicMetrics;
+
+        String instrumentationKey = nozzleProperties.getNozzleInstrumentationKey();
+        if (instrumentationKey == null || instrumentationKey.isEmpty()) {
+            this.sender = null;
+        } else {
+            ApplicationInsightsSender created = new ApplicationInsightsSender(instrumentationKey, channelFactory.create(instrumentationKey));
+            this.sender = created.isEnabled() ? created : null;
+            log.info("Sending the nozzle metrics to Application Insights every minute");
+        }
+
+        String instance = System.getenv("CF_INSTANCE_INDEX");
+        this.properties = Collections.singletonMap("nozzle_instance", instance == null ? "0" : instance);
+    }
+
+    @Scheduled(fixedRate = 60000)
+    void report() {
+        if (sender == null) {
+            return;
+        }
+        for (PublicMetrics source : publicMetrics) {
+            for (Metric<?> metric : source.metrics()) {
+                if (!metric.getName().startsWith(PREFIX) || metric.getValue() == null) {
+                    continue;
+                }
+                double value = metric.getValue().doubleValue();
+                if (!GAUGES.contains(metric.getName())) {
+                    Double previous = previousCounts.put(metric.getName(), value);
+                    // A counter below its previous value was reset, e.g. its channel was recreated
+                    if (previous != null && value >= previous) {
+                        value -= previous;
+                    }
+                }
+                sender.sendMetric(metric.getName(), value, properties);
+            }
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (sender != null) {
+            sender.shutdown(10, TimeUnit.SECONDS);
+        }
+    }
+}
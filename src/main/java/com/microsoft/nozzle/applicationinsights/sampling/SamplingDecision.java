@@ -0,0 +1,10 @@
+package com.microsoft.nozzle.applicationinsights.sampling;
+
+/**
+ * What happens to a trace line
+ */
+public enum SamplingDecision {
+    KEPT,
+    SAMPLED_OUT,
+    RATE_LIMITED
+}
@@ -0,0 +1,172 @@
+package com.microsoft.nozzle.applicationinsights.sampling;
+
+import com.microsoft.nozzle.applicationinsights.config.NozzleProperties;
+import org.cloudfoundry.doppler.MessageType;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adaptive sampling and rate limiting of trace lines, per app and per instance
+ * <p>
+ * In order, a line is kept if it is a stderr line within the stderr floor of its app, otherwise it is sampled when its
+ * app logged more lines than the sampling target in the last second, with the ratio of the target to that rate, then
+ * rate limited by the token buckets of its instance and of its app. The kept, sampled out and rate limited lines are
+ * counted per app instance. The state of the apps and instances idle for a whole interval of the counts is removed.
+ */
+public class TraceSampler {
+
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final double appRateLimit;
+    private final int appRateBurst;
+    private final double instanceRateLimit;
+    private final double samplingTarget;
+    private final double stderrFloorRate;
+
+    private final Map<String, AppState> apps = new ConcurrentHashMap<String, AppState>();
+
+    public TraceSampler(NozzleProperties properties) {
+        this.appRateLimit = properties.getTraceRateLimit();
+        this.appRateBurst = properties.getTraceRateBurst() > 0 ? properties.getTraceRateBurst() : (int) Math.ceil(appRateLimit);
+        this.instanceRateLimit = properties.getTraceInstanceRateLimit();
+        this.samplingTarget = properties.getTraceSamplingTarget();
+        this.stderrFloorRate = properties.getTraceStderrFloor();
+    }
+
+    /**
+     * @return whether any limit or sampling is configured
+     */
+    public boolean isEnabled() {
+        return appRateLimit > 0 || instanceRateLimit > 0 || samplingTarget > 0;
+    }
+
+    /**
+     * Decide whether a trace line is kept
+     *
+     * @param appId
+     * @param instanceId
+     * @param messageType
+     * @return
+     */
+    public SamplingDecision sample(String appId, String instanceId, MessageType messageType) {
+        long now = System.nanoTime();
+        AppState app = apps.computeIfAbsent(appId, id -> new AppState());
+        InstanceState instance = app.instances.computeIfAbsent(instanceId == null ? "" : instanceId, id -> new InstanceState());
+
+        SamplingDecision decision = decide(app, instance, messageType, now);
+        switch (decision) {
+            case KEPT:
+                instance.kept.increment();
+                break;
+            case SAMPLED_OUT:
+                instance.sampledOut.increment();
+                break;
+            default:
+                instance.rateLimited.increment();
+        }
+        return decision;
+    }
+
+    private SamplingDecision decide(AppState app, InstanceState instance, MessageType messageType, long now) {
+        if (messageType == MessageType.ERR && app.stderrFloor != null && app.stderrFloor.tryAcquire(now)) {
+            return SamplingDecision.KEPT;
+        }
+        if (app.sampling != null && !app.sampling.sample(now)) {
+            return SamplingDecision.SAMPLED_OUT;
+        }
+        if (instance.bucket != null && !instance.bucket.tryAcquire(now)) {
+            return SamplingDecision.RATE_LIMITED;
+        }
+        if (app.bucket != null && !app.bucket.tryAcquire(now)) {
+            return SamplingDecision.RATE_LIMITED;
+        }
+        return SamplingDecision.KEPT;
+    }
+
+    /**
+     * Pass the counts of each app instance since the last call to the consumer, and reset them. The instances without
+     * any line since the last call are removed, with their rate limits, and the apps without instances left.
+     *
+     * @param consumer
+     */
+    public void drainCounts(CountsConsumer consumer) {
+        apps.forEach((appId, app) -> {
+            app.instances.forEach((instanceId, instance) -> {
+                if (!drainCounts(appId, instanceId, instance, consumer) && app.instances.remove(instanceId, instance)) {
+                    // A line sampled while the instance was removed is still counted
+                    drainCounts(appId, instanceId, instance, consumer);
+                }
+            });
+            apps.computeIfPresent(appId, (id, current) -> current.instances.isEmpty() ? null : current);
+        });
+    }
+
+    /**
+     * @return whether the instance had any line since the last call
+     */
+    private static boolean drainCounts(String appId, String instanceId, InstanceState instance, CountsConsumer consumer) {
+        long kept = instance.kept.sumThenReset();
+        long sampledOut = instance.sampledOut.sumThenReset();
+        long rateLimited = instance.rateLimited.sumThenReset();
+        if (kept > 0 || sampledOut > 0 || rateLimited > 0) {
+            consumer.accept(appId, instanceId, kept, sampledOut, rateLimited);
+            return true;
+        }
+        return false;
+    }
+
+    @FunctionalInterface
+    public interface CountsConsumer {
+        void accept(String appId, String instanceId, long kept, long sampledOut, long rateLimited);
+    }
+
+    private final class AppState {
+        private final TokenBucket bucket = appRateLimit > 0 ? new TokenBucket(appRateLimit, appRateBurst) : null;
+        private final TokenBucket stderrFloor = stderrFloorRate > 0
+                ? new TokenBucket(stderrFloorRate, (int) Math.ceil(stderrFloorRate)) : null;
+        private final AdaptiveSampler sampling = samplingTarget > 0 ? new AdaptiveSampler(samplingTarget) : null;
+        private final Map<String, InstanceState> instances = new ConcurrentHashMap<String, InstanceState>();
+    }
+
+    private final class InstanceState {
+        private final TokenBucket bucket = instanceRateLimit > 0 ? new TokenBucket(instanceRateLimit, (int) Math.ceil(instanceRateLimit)) : null;
+        private final LongAdder kept = new LongAdder();
+        private final LongAdder sampledOut = new LongAdder();
+        private final LongAdder rateLimited = new LongAdder();
+    }
+
+    /**
+     * Keeps lines with the ratio of the target rate to the rate of the previous window, evenly spread rather than random
+     */
+    private static final class AdaptiveSampler {
+        private final double targetPerSecond;
+        private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+        private final AtomicLong windowCount = new AtomicLong();
+        private final AtomicLong seen = new AtomicLong();
+        private volatile double ratio = 1.0;
+
+        private AdaptiveSampler(double targetPerSecond) {
+            this.targetPerSecond = targetPerSecond;
+        }
+
+        private boolean sample(long now) {
+            long start = windowStart.get();
+            if (now - start >= WINDOW_NANOS && windowStart.compareAndSet(start, now)) {
+                double rate = windowCount.getAndSet(0) * (double) WINDOW_NANOS / (now - start);
+                ratio = rate <= targetPerSecond ? 1.0 : targetPerSecond / rate;
+            }
+            windowCount.incrementAndGet();
+
+            double keep = ratio;
+            if (keep >= 1.0) {
+                return true;
+            }
+            long n = seen.incrementAndGet();
+            return (long) (n * keep) != (long) ((n - 1) * keep);
+        }
+    }
+}